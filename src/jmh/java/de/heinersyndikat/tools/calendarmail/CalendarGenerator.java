@@ -0,0 +1,128 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import net.fortuna.ical4j.model.TimeZoneRegistry;
+import net.fortuna.ical4j.model.TimeZoneRegistryFactory;
+
+/**
+ * Generator of synthetic iCal data for the benchmarks.
+ *
+ * The events start within a month before and two months after today and
+ * use the given number of time zones. A part of the events recur weekly.
+ * The events are either written into a single iCal file or into one file
+ * for each event like in a CalDAV collection.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class CalendarGenerator {
+
+	/**
+	 * time zones used by the events, in this order
+	 */
+	public static final String[] ZONES = {"Europe/Berlin", "America/New_York", "Asia/Tokyo",
+		"Australia/Sydney", "Europe/London", "America/Los_Angeles"};
+	protected static final DateTimeFormatter ICAL_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+
+	private final Random random;
+	private final int events;
+	private final double recurring;
+	private final int zones;
+	private final String timezones;
+
+	/**
+	 * Initialization constructor.
+	 *
+	 * @param seed seed of the random numbers, so the data is reproducible
+	 * @param events number of events
+	 * @param recurring share of recurring events between 0 and 1
+	 * @param zones number of time zones between 1 and the number of ZONES
+	 */
+	public CalendarGenerator(long seed, int events, double recurring, int zones) {
+		this.random = new Random(seed);
+		this.events = events;
+		this.recurring = recurring;
+		this.zones = Math.max(1, Math.min(zones, ZONES.length));
+		TimeZoneRegistry registry = TimeZoneRegistryFactory.getInstance().createRegistry();
+		StringBuilder definitions = new StringBuilder();
+		for (int i = 0; i < this.zones; i++) {
+			definitions.append(registry.getTimeZone(ZONES[i]).getVTimeZone());
+		}
+		this.timezones = definitions.toString();
+	}
+
+	/**
+	 * @return a single iCal file containing all events
+	 */
+	public String singleFile() {
+		StringBuilder ical = header();
+		for (int i = 0; i < events; i++) {
+			ical.append(event(i));
+		}
+		return ical.append("END:VCALENDAR\r\n").toString();
+	}
+
+	/**
+	 * @return an iCal file for each event
+	 */
+	public List<String> collection() {
+		List<String> files = new ArrayList<>(events);
+		for (int i = 0; i < events; i++) {
+			files.add(header().append(event(i)).append("END:VCALENDAR\r\n").toString());
+		}
+		return files;
+	}
+
+	/**
+	 * @param layout "file" for a single file, otherwise a collection
+	 * @return the iCal files of the layout
+	 */
+	public List<String> files(String layout) {
+		List<String> files = new ArrayList<>();
+		if ("file".equals(layout)) {
+			files.add(singleFile());
+		} else {
+			files.addAll(collection());
+		}
+		return files;
+	}
+
+	/**
+	 * @return beginning of an iCal file with the time zone definitions
+	 */
+	protected StringBuilder header() {
+		return new StringBuilder(1024 + timezones.length())
+						.append("BEGIN:VCALENDAR\r\nVERSION:2.0\r\nPRODID:-//CalendarMail//Benchmark//EN\r\n")
+						.append(timezones);
+	}
+
+	/**
+	 * @param i number of the event
+	 * @return iCal data of a random event
+	 */
+	protected String event(int i) {
+		LocalDateTime start = LocalDateTime.now().withHour(0).withMinute(0).withSecond(0).withNano(0)
+						.plusDays(random.nextInt(90) - 30)
+						.plusMinutes(15 * random.nextInt(4 * 24));
+		LocalDateTime end = start.plusMinutes(30 + 30 * random.nextInt(6));
+		String zone = ZONES[random.nextInt(zones)];
+		StringBuilder event = new StringBuilder(512)
+						.append("BEGIN:VEVENT\r\n")
+						.append("UID:event-").append(i).append("@benchmark.calendarmail\r\n")
+						.append("DTSTAMP:20170101T000000Z\r\n")
+						.append("DTSTART;TZID=").append(zone).append(':').append(start.format(ICAL_FORMAT)).append("\r\n")
+						.append("DTEND;TZID=").append(zone).append(':').append(end.format(ICAL_FORMAT)).append("\r\n")
+						.append("SUMMARY:Event ").append(i).append(" of the benchmark\r\n")
+						.append("LOCATION:Room ").append(random.nextInt(100)).append("\\, Building ")
+						.append(random.nextInt(10)).append("\r\n")
+						.append("DESCRIPTION:Synthetic event for measuring the reading of calendars.\r\n");
+		if (random.nextDouble() < recurring) {
+			event.append("RRULE:FREQ=WEEKLY;COUNT=").append(2 + random.nextInt(30)).append("\r\n");
+		}
+		return event.append("END:VEVENT\r\n").toString();
+	}
+
+}
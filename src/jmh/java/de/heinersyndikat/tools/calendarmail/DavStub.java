@@ -0,0 +1,196 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process WebDAV server serving generated calendars.
+ *
+ * Each calendar is either a collection with one iCal file per event at
+ * /cal/&lt;n&gt;/ or a single iCal file at /cal/&lt;n&gt;.ics. The
+ * collections answer PROPFIND requests with their files, entity tags and
+ * collection tag; the files answer GET requests and support If-None-Match.
+ * Every request is delayed by the configured latency.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class DavStub {
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final long latency;
+	/**
+	 * iCal files by their path
+	 */
+	private final Map<String, byte[]> files = new LinkedHashMap<>();
+	/**
+	 * paths of the files of each collection by the path of the collection
+	 */
+	private final Map<String, List<String>> collections = new LinkedHashMap<>();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * Generate the calendars and start the server on a free local port.
+	 *
+	 * @param calendars number of calendars
+	 * @param events number of events of each calendar
+	 * @param recurring share of recurring events
+	 * @param zones number of time zones
+	 * @param layout "file" for single iCal files, otherwise collections
+	 * @param latency delay of each request in milliseconds
+	 * @throws IOException
+	 */
+	public DavStub(int calendars, int events, double recurring, int zones, String layout, long latency)
+					throws IOException {
+		this.latency = latency;
+		for (int c = 0; c < calendars; c++) {
+			CalendarGenerator generator = new CalendarGenerator(c, events, recurring, zones);
+			if ("file".equals(layout)) {
+				files.put("/cal/" + c + ".ics", generator.singleFile().getBytes(StandardCharsets.UTF_8));
+				continue;
+			}
+			String collection = "/cal/" + c + "/";
+			List<String> paths = new ArrayList<>();
+			List<String> generated = generator.collection();
+			for (int i = 0; i < generated.size(); i++) {
+				String path = collection + i + ".ics";
+				files.put(path, generated.get(i).getBytes(StandardCharsets.UTF_8));
+				paths.add(path);
+			}
+			collections.put(collection, paths);
+		}
+		executor = Executors.newFixedThreadPool(32);
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+		server.start();
+	}
+
+	/**
+	 * @param calendar number of the calendar
+	 * @param layout layout given to the constructor
+	 * @return address of the calendar
+	 */
+	public String getAddress(int calendar, String layout) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/cal/" + calendar
+						+ ("file".equals(layout) ? ".ics" : "/");
+	}
+
+	/**
+	 * Answer a request.
+	 *
+	 * @param exchange request and response
+	 * @throws IOException
+	 */
+	protected void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		try {
+			Thread.sleep(latency);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		String path = exchange.getRequestURI().getPath();
+		String method = exchange.getRequestMethod();
+		// consume the request body
+		while (exchange.getRequestBody().read() >= 0) {
+		}
+		if ("PROPFIND".equals(method) && collections.containsKey(path)) {
+			respond(exchange, 207, "application/xml; charset=utf-8", multistatus(path), null);
+		} else if ("GET".equals(method) && files.containsKey(path)) {
+			String etag = etag(path);
+			if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+				respond(exchange, 304, null, null, etag);
+			} else {
+				respond(exchange, 200, "text/calendar; charset=utf-8", files.get(path), etag);
+			}
+		} else if ("PROPFIND".equals(method) || "REPORT".equals(method)) {
+			respond(exchange, 405, null, null, null);
+		} else {
+			respond(exchange, 404, null, null, null);
+		}
+	}
+
+	/**
+	 * @return the PROPFIND response of a collection
+	 */
+	protected byte[] multistatus(String collection) {
+		StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n")
+						.append("<d:multistatus xmlns:d=\"DAV:\" xmlns:cs=\"http://calendarserver.org/ns/\">\n")
+						.append("<d:response><d:href>").append(collection).append("</d:href><d:propstat><d:prop>")
+						.append("<d:resourcetype><d:collection/></d:resourcetype>")
+						.append("<cs:getctag>").append(collection.hashCode()).append("</cs:getctag>")
+						.append("</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>\n");
+		for (String path : collections.get(collection)) {
+			xml.append("<d:response><d:href>").append(path).append("</d:href><d:propstat><d:prop>")
+							.append("<d:resourcetype/>")
+							.append("<d:getetag>").append(etag(path)).append("</d:getetag>")
+							.append("<d:getcontenttype>text/calendar; charset=utf-8</d:getcontenttype>")
+							.append("<d:getcontentlength>").append(files.get(path).length).append("</d:getcontentlength>")
+							.append("</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>\n");
+		}
+		return xml.append("</d:multistatus>\n").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the entity tag of a file, unchanged as long as the stub runs
+	 */
+	protected String etag(String path) {
+		return "\"" + Integer.toHexString(path.hashCode()) + "\"";
+	}
+
+	/**
+	 * Send a response.
+	 */
+	protected void respond(HttpExchange exchange, int status, String type, byte[] body, String etag)
+					throws IOException {
+		if (type != null) {
+			exchange.getResponseHeaders().set("Content-Type", type);
+		}
+		if (etag != null) {
+			exchange.getResponseHeaders().set("ETag", etag);
+		}
+		exchange.sendResponseHeaders(status, (body != null) ? body.length : -1);
+		if (body != null) {
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+			bytes.addAndGet(body.length);
+		}
+		exchange.close();
+	}
+
+	/**
+	 * @return the number of answered requests
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of sent bytes
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Stop the server.
+	 */
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+}
@@ -0,0 +1,87 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.fortuna.ical4j.data.ParserException;
+import net.fortuna.ical4j.model.Dur;
+import net.fortuna.ical4j.model.Period;
+import net.fortuna.ical4j.model.component.VEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Selection of the events of a reminder period.
+ *
+ * The events are distributed over several calendars. Measured are the
+ * building of the event indexes, including the expansion of the recurring
+ * events, and the filtering and merging of the indexed events as done for
+ * each reminder.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark {
+
+	@Param({"1000", "10000"})
+	private int events;
+	@Param({"0.0", "0.2"})
+	private double recurring;
+	@Param({"4"})
+	private int calendars;
+	@Param({"3", "31"})
+	private int days_in_advance;
+
+	private final List<List<VEvent>> parsed = new ArrayList<>();
+	private final List<EventIndex> indexes = new ArrayList<>();
+	private Period horizon;
+	private Period period;
+
+	@Setup
+	public void generate() throws IOException, ParserException {
+		LocalDate today = LocalDate.now();
+		Reminder reminder = new Reminder();
+		reminder.setDays_in_advance(days_in_advance);
+		period = reminder.getPeriod();
+		horizon = new Period(period.getStart(), new Dur(days_in_advance + 7, 0, 0, 0));
+		for (int i = 0; i < calendars; i++) {
+			String file = new CalendarGenerator(i, events / calendars, recurring, 2).singleFile();
+			List<VEvent> calendar = new EventExtractor(today.minusDays(31), today.plusDays(62))
+							.extract(new StringReader(file));
+			parsed.add(calendar);
+			indexes.add(new EventIndex(calendar, horizon));
+		}
+	}
+
+	@Benchmark
+	public List<EventIndex> buildIndexes() {
+		List<EventIndex> built = new ArrayList<>(parsed.size());
+		for (List<VEvent> calendar : parsed) {
+			built.add(new EventIndex(calendar, horizon));
+		}
+		return built;
+	}
+
+	@Benchmark
+	public List<VEvent> filterIndexes() {
+		return RemoteCalendar.filterIndexes(indexes, period);
+	}
+
+}
@@ -0,0 +1,207 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.quartz.impl.StdSchedulerFactory;
+import org.quartz.listeners.JobListenerSupport;
+
+/**
+ * End-to-end load test without external servers.
+ *
+ * A local WebDAV server serves generated calendars and a local SMTP server
+ * accepts the emails. A configuration pointing at both is generated and
+ * all reminders are triggered at once via the Quartz scheduler and the
+ * ReminderJob. Afterwards the throughput, the latencies of the stages
+ * measured by the Metrics and the peak heap usage are reported.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class LoadHarness {
+
+	/**
+	 * Define the command line options.
+	 *
+	 * @return the available command line options
+	 */
+	protected static Options defineOptions() {
+		Options options = new Options();
+		options.addOption(new Option("h", "print this message"));
+		addOption(options, "calendars", "number", "number of calendars (default 4)");
+		addOption(options, "events", "number", "events of each calendar (default 200)");
+		addOption(options, "recurring", "share", "share of recurring events (default 0.1)");
+		addOption(options, "zones", "number", "number of time zones (default 2)");
+		addOption(options, "layout", "file|collection", "layout of the calendars (default collection)");
+		addOption(options, "latency", "ms", "latency of each WebDAV request (default 20)");
+		addOption(options, "reminders", "number", "number of reminders (default 50)");
+		addOption(options, "receivers", "number", "receivers of each reminder (default 20)");
+		addOption(options, "per_recipient", null, "send an email to each receiver");
+		return options;
+	}
+
+	/**
+	 * Add an option with a long name.
+	 */
+	protected static void addOption(Options options, String name, String arg, String description) {
+		OptionBuilder.withLongOpt(name);
+		OptionBuilder.hasArg(arg != null);
+		OptionBuilder.withArgName(arg);
+		OptionBuilder.withDescription(description);
+		options.addOption(OptionBuilder.create());
+	}
+
+	/**
+	 * Main function.
+	 *
+	 * @param args command line options
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		CommandLine cmdline;
+		try {
+			cmdline = new BasicParser().parse(defineOptions(), args);
+		} catch (ParseException ex) {
+			System.err.println(ex.getLocalizedMessage());
+			new HelpFormatter().printHelp(LoadHarness.class.getSimpleName(), defineOptions());
+			System.exit(1);
+			return;
+		}
+		if (cmdline.hasOption("h")) {
+			new HelpFormatter().printHelp(LoadHarness.class.getSimpleName(), defineOptions());
+			return;
+		}
+		int calendars = Integer.parseInt(cmdline.getOptionValue("calendars", "4"));
+		int events = Integer.parseInt(cmdline.getOptionValue("events", "200"));
+		double recurring = Double.parseDouble(cmdline.getOptionValue("recurring", "0.1"));
+		int zones = Integer.parseInt(cmdline.getOptionValue("zones", "2"));
+		String layout = cmdline.getOptionValue("layout", "collection");
+		long latency = Long.parseLong(cmdline.getOptionValue("latency", "20"));
+		int reminders = Integer.parseInt(cmdline.getOptionValue("reminders", "50"));
+		int receivers = Integer.parseInt(cmdline.getOptionValue("receivers", "20"));
+		boolean per_recipient = cmdline.hasOption("per_recipient");
+
+		DavStub dav = new DavStub(calendars, events, recurring, zones, layout, latency);
+		SmtpSink smtp = new SmtpSink();
+		try {
+			Path config = Files.createTempFile("calendarmail-load", ".conf");
+			Files.write(config, configuration(dav, smtp, calendars, layout, reminders, receivers, per_recipient)
+							.getBytes(StandardCharsets.UTF_8));
+			CalendarMailConfiguration.INSTANCE.setConfigurationFile(config.toString());
+			CalendarMailConfiguration.INSTANCE.setSingleExecution(true);
+			CalendarMailConfiguration.INSTANCE.load();
+			Files.delete(config);
+			run(dav, smtp, reminders);
+		} finally {
+			dav.stop();
+			smtp.stop();
+		}
+	}
+
+	/**
+	 * Create the configuration for the local servers.
+	 *
+	 * @return HOCON configuration
+	 */
+	protected static String configuration(DavStub dav, SmtpSink smtp, int calendars, String layout,
+					int reminders, int receivers, boolean per_recipient) {
+		StringBuilder conf = new StringBuilder("calendarmail {\n\tcalendars = [\n");
+		for (int c = 0; c < calendars; c++) {
+			conf.append("\t\t{ hostname : \"calendar-").append(c).append("\", address : \"")
+							.append(dav.getAddress(c, layout)).append("\", username : \"load\", password : \"load\" }\n");
+		}
+		conf.append("\t]\n\temailserver {\n")
+						.append("\t\thostname : \"127.0.0.1\"\n\t\tsmtp_port : ").append(smtp.getPort()).append('\n')
+						.append("\t\tusername : \"load\"\n\t\tpassword : \"load\"\n\t\tssl_connect : false\n")
+						.append("\t\tfrom : \"calendarmail@load.test\"\n\t\tpool_size : 4\n\t}\n")
+						.append("\treminders = [\n");
+		for (int r = 0; r < reminders; r++) {
+			conf.append("\t\t{ name : \"load-").append(r).append("\", cron_trigger : \"\", days_in_advance : ")
+							.append(1 + r % 31).append(", per_recipient : ").append(per_recipient).append(", receivers = [");
+			for (int i = 0; i < receivers; i++) {
+				conf.append((i > 0) ? ", " : "").append("\"r").append(r).append('-').append(i).append("@load.test\"");
+			}
+			conf.append("] }\n");
+		}
+		return conf.append("\t]\n}\n").toString();
+	}
+
+	/**
+	 * Trigger all reminders at once and report the results.
+	 */
+	protected static void run(DavStub dav, SmtpSink smtp, int reminders)
+					throws SchedulerException, InterruptedException {
+		ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+		CountDownLatch finished = new CountDownLatch(reminders);
+		Scheduler sched = new StdSchedulerFactory().getScheduler();
+		sched.getListenerManager().addJobListener(new JobListenerSupport() {
+			@Override
+			public String getName() {
+				return "load-harness";
+			}
+
+			@Override
+			public void jobWasExecuted(JobExecutionContext context, JobExecutionException ex) {
+				finished.countDown();
+			}
+		});
+		for (Reminder reminder : CalendarMailConfiguration.INSTANCE.getReminders().values()) {
+			try {
+				sched.scheduleJob(reminder.createJob(), reminder.createTrigger());
+			} catch (java.text.ParseException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+		long started = System.currentTimeMillis();
+		sched.start();
+		finished.await();
+		long executed = System.currentTimeMillis();
+		sched.shutdown(true);
+		CalendarMailConfiguration.INSTANCE.getOutbox().drain();
+		long sent = Math.max(smtp.getLast_message(), executed);
+		CalendarMailConfiguration.INSTANCE.getEmailserver().close();
+		CalendarMailConfiguration.INSTANCE.getFetch().shutdown();
+		SardineTrustAlways.closeConnections();
+
+		double reminder_minutes = Math.max(1, executed - started) / 60000.0;
+		double mail_minutes = Math.max(1, sent - started) / 60000.0;
+		System.out.println();
+		System.out.printf("Reminders: %d in %.1f s (%.0f reminders/min)%n",
+						reminders, reminder_minutes * 60, reminders / reminder_minutes);
+		System.out.printf("Mails:     %d to %d receivers over %d connections in %.1f s (%.0f mails/min)%n",
+						smtp.getMessages(), smtp.getReceivers(), smtp.getConnections(), mail_minutes * 60,
+						smtp.getMessages() / mail_minutes);
+		System.out.printf("WebDAV:    %d requests, %.1f MB%n", dav.getRequests(), dav.getBytes() / 1e6);
+		System.out.printf("Peak heap: %.1f MB%n", peakHeap() / 1e6);
+		System.out.println();
+		System.out.printf("%-20s %8s %10s %10s %10s%n", "Stage", "count", "median ms", "p95 ms", "max ms");
+		Metrics.stages().forEach((stage, latency) -> System.out.printf("%-20s %8d %10.0f %10.0f %10.1f%n",
+						stage, latency.getCount(), latency.getMedianMillis(), latency.getP95Millis(),
+						latency.getMaxMillis()));
+	}
+
+	/**
+	 * @return the sum of the peak usage of all heap memory pools in bytes
+	 */
+	protected static long peakHeap() {
+		return ManagementFactory.getMemoryPoolMXBeans().stream()
+						.filter(pool -> pool.getType() == MemoryType.HEAP)
+						.mapToLong(pool -> pool.getPeakUsage().getUsed())
+						.sum();
+	}
+
+}
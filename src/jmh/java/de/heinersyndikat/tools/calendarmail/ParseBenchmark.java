@@ -0,0 +1,70 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.data.ParserException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of iCal data by the CalendarBuilder of ical4j and by the event
+ * extractor keeping only the events of the reminder period.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+	@Param({"100", "1000"})
+	private int events;
+	@Param({"0.0", "0.2"})
+	private double recurring;
+	@Param({"1", "4"})
+	private int zones;
+	@Param({"file", "collection"})
+	private String layout;
+	@Param({"31"})
+	private int days_in_advance;
+
+	private List<String> files;
+
+	@Setup
+	public void generate() {
+		files = new CalendarGenerator(42, events, recurring, zones).files(layout);
+	}
+
+	@Benchmark
+	public void calendarBuilder(Blackhole bh) throws IOException, ParserException {
+		for (String file : files) {
+			bh.consume(new CalendarBuilder().build(new StringReader(file)));
+		}
+	}
+
+	@Benchmark
+	public void eventExtractor(Blackhole bh) throws IOException, ParserException {
+		LocalDate today = LocalDate.now();
+		for (String file : files) {
+			bh.consume(new EventExtractor(today, today.plusDays(days_in_advance)).extract(new StringReader(file)));
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.fortuna.ical4j.data.ParserException;
+import net.fortuna.ical4j.model.component.VEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Textual representation of the events and creation of the email body.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBenchmark {
+
+	@Param({"10", "100", "1000"})
+	private int events;
+	@Param({"1", "4"})
+	private int zones;
+
+	private List<VEvent> sorted;
+	private Reminder reminder;
+	private Reminder.Audience audience;
+
+	@Setup
+	public void generate() throws IOException, ParserException {
+		LocalDate today = LocalDate.now();
+		String file = new CalendarGenerator(42, events, 0.0, zones).singleFile();
+		sorted = new EventExtractor(today.minusDays(31), today.plusDays(62)).extract(new StringReader(file));
+		sorted.sort(new EventComparator());
+		reminder = new Reminder();
+		reminder.setName("benchmark");
+		reminder.setDays_in_advance(31);
+		audience = new Reminder.Audience(reminder.getLocale(), CalendarMailConfiguration.INSTANCE.getTimezone());
+	}
+
+	@Benchmark
+	public String eventlistToString() {
+		return RemoteCalendar.eventlist_to_string(sorted);
+	}
+
+	@Benchmark
+	public String createBody() {
+		return reminder.createBody(sorted, audience);
+	}
+
+}
@@ -0,0 +1,160 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process SMTP server accepting and discarding all messages.
+ *
+ * It accepts any authentication and counts the connections, messages and
+ * receivers.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class SmtpSink {
+
+	private final ServerSocket socket;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final AtomicLong connections = new AtomicLong();
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong receivers = new AtomicLong();
+	private volatile long last_message = 0;
+
+	/**
+	 * Start the server on a free local port.
+	 *
+	 * @throws IOException
+	 */
+	public SmtpSink() throws IOException {
+		socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		executor.execute(() -> {
+			while (!socket.isClosed()) {
+				try {
+					Socket client = socket.accept();
+					executor.execute(() -> session(client));
+				} catch (IOException ex) {
+					// server stopped
+				}
+			}
+		});
+	}
+
+	/**
+	 * Handle an SMTP session.
+	 *
+	 * @param client connection of the client
+	 */
+	protected void session(Socket client) {
+		connections.incrementAndGet();
+		try (Socket s = client;
+						BufferedReader in = new BufferedReader(
+										new InputStreamReader(s.getInputStream(), StandardCharsets.ISO_8859_1));
+						Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.ISO_8859_1)) {
+			reply(out, "220 calendarmail sink");
+			boolean data = false;
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (data) {
+					if (line.equals(".")) {
+						data = false;
+						messages.incrementAndGet();
+						last_message = System.currentTimeMillis();
+						reply(out, "250 ok");
+					}
+					continue;
+				}
+				String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase(Locale.ROOT) : line;
+				switch (command) {
+					case "EHLO":
+						reply(out, "250-calendarmail sink\r\n250 AUTH PLAIN LOGIN");
+						break;
+					case "AUTH":
+						reply(out, "235 ok");
+						break;
+					case "RCPT":
+						receivers.incrementAndGet();
+						reply(out, "250 ok");
+						break;
+					case "DATA":
+						data = true;
+						reply(out, "354 go ahead");
+						break;
+					case "QUIT":
+						reply(out, "221 bye");
+						return;
+					default:
+						reply(out, "250 ok");
+				}
+			}
+		} catch (IOException ex) {
+			// connection closed by the client
+		}
+	}
+
+	/**
+	 * Send a reply line.
+	 */
+	protected static void reply(Writer out, String text) throws IOException {
+		out.write(text + "\r\n");
+		out.flush();
+	}
+
+	/**
+	 * @return the port of the server
+	 */
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * @return the number of connections
+	 */
+	public long getConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * @return the number of received messages
+	 */
+	public long getMessages() {
+		return messages.get();
+	}
+
+	/**
+	 * @return the number of receivers of all messages
+	 */
+	public long getReceivers() {
+		return receivers.get();
+	}
+
+	/**
+	 * @return time of the last received message in milliseconds
+	 */
+	public long getLast_message() {
+		return last_message;
+	}
+
+	/**
+	 * Stop the server.
+	 */
+	public void stop() {
+		try {
+			socket.close();
+		} catch (IOException ex) {
+			// already closed
+		}
+		executor.shutdownNow();
+	}
+
+}
@@ -0,0 +1,82 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import net.fortuna.ical4j.data.ParserException;
+import net.fortuna.ical4j.model.component.VEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Chronological ordering of events by the EventComparator, as a complete
+ * sort and as a merge of the sorted events of several calendars.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SortBenchmark {
+
+	@Param({"100", "1000", "10000"})
+	private int events;
+	@Param({"4"})
+	private int calendars;
+
+	private final List<List<VEvent>> sorted = new ArrayList<>();
+	private List<VEvent> all;
+	private List<VEvent> shuffled;
+
+	@Setup
+	public void generate() throws IOException, ParserException {
+		LocalDate today = LocalDate.now();
+		all = new ArrayList<>();
+		for (int i = 0; i < calendars; i++) {
+			String file = new CalendarGenerator(i, events / calendars, 0.0, 2).singleFile();
+			List<VEvent> calendar = new EventExtractor(today.minusDays(31), today.plusDays(62))
+							.extract(new StringReader(file));
+			calendar.sort(new EventComparator());
+			sorted.add(calendar);
+			all.addAll(calendar);
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void shuffle() {
+		shuffled = new ArrayList<>(all);
+		Collections.shuffle(shuffled, new Random(42));
+	}
+
+	@Benchmark
+	public List<VEvent> sort() {
+		shuffled.sort(new EventComparator());
+		return shuffled;
+	}
+
+	@Benchmark
+	public List<VEvent> merge() {
+		List<VEvent> merged = new ArrayList<>(all.size());
+		new EventMerge(sorted).forEachRemaining(merged::add);
+		return merged;
+	}
+
+}
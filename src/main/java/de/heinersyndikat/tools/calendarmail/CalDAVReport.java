@@ -0,0 +1,262 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * CalDAV REPORT request and its multistatus response.
+ *
+ * Supported are the calendar-query (RFC 4791) and the sync-collection
+ * (RFC 6578) reports.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class CalDAVReport {
+
+	/**
+	 * Logger instance
+	 */
+	private static transient final Logger logger
+					= LoggerFactory.getLogger(Thread.currentThread().getStackTrace()[1].getClassName());
+
+	public static final String DAV_NS = "DAV:";
+	public static final String CALDAV_NS = "urn:ietf:params:xml:ns:caldav";
+	/**
+	 * time format of CalDAV time ranges
+	 */
+	protected static final DateTimeFormatter UTC_FORMAT
+					= DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+	/**
+	 * Response for a single resource.
+	 */
+	public static class Item {
+
+		private final String href;
+		private final String status;
+		private final String etag;
+		private final String data;
+
+		Item(String href, String status, String etag, String data) {
+			this.href = href;
+			this.status = status;
+			this.etag = etag;
+			this.data = data;
+		}
+
+		/**
+		 * @return the href
+		 */
+		public String getHref() {
+			return href;
+		}
+
+		/**
+		 * @return the status or null
+		 */
+		public String getStatus() {
+			return status;
+		}
+
+		/**
+		 * @return the etag or null
+		 */
+		public String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * @return the calendar data or null
+		 */
+		public String getData() {
+			return data;
+		}
+
+		/**
+		 * @return true, if the resource was removed
+		 */
+		public boolean isMissing() {
+			return (status != null) && status.matches("\\S+\\s+404\\b.*");
+		}
+	}
+
+	private final List<Item> items;
+	private final String sync_token;
+
+	/**
+	 * Initialization constructor.
+	 *
+	 * @param items responses for the resources
+	 * @param sync_token synchronization token of the collection or null
+	 */
+	protected CalDAVReport(List<Item> items, String sync_token) {
+		this.items = Collections.unmodifiableList(items);
+		this.sync_token = sync_token;
+	}
+
+	/**
+	 * Create the body of a calendar-query for events in the given time range.
+	 *
+	 * @param start begin of the time range
+	 * @param end end of the time range
+	 * @param expand true, if the server shall expand recurring events
+	 * @return XML request body
+	 */
+	public static String calendarQuery(Instant start, Instant end, boolean expand) {
+		String range = "start=\"" + UTC_FORMAT.format(start) + "\" end=\"" + UTC_FORMAT.format(end) + "\"";
+		StringBuilder body = new StringBuilder();
+		body.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+		body.append("<C:calendar-query xmlns:D=\"" + DAV_NS + "\" xmlns:C=\"" + CALDAV_NS + "\">\n");
+		body.append(" <D:prop>\n  <D:getetag/>\n");
+		if (expand) {
+			body.append("  <C:calendar-data><C:expand ").append(range).append("/></C:calendar-data>\n");
+		} else {
+			body.append("  <C:calendar-data/>\n");
+		}
+		body.append(" </D:prop>\n");
+		body.append(" <C:filter>\n  <C:comp-filter name=\"VCALENDAR\">\n");
+		body.append("   <C:comp-filter name=\"VEVENT\">\n");
+		body.append("    <C:time-range ").append(range).append("/>\n");
+		body.append("   </C:comp-filter>\n  </C:comp-filter>\n </C:filter>\n");
+		body.append("</C:calendar-query>\n");
+		return body.toString();
+	}
+
+	/**
+	 * Create the body of a sync-collection report.
+	 *
+	 * An empty token requests all resources of the collection, otherwise
+	 * the resources changed or removed since the token was issued.
+	 *
+	 * @param token synchronization token of the last report or empty
+	 * @param data true, if the calendar data shall be included
+	 * @return XML request body
+	 */
+	public static String syncCollection(String token, boolean data) {
+		StringBuilder body = new StringBuilder();
+		body.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+		body.append("<D:sync-collection xmlns:D=\"" + DAV_NS + "\" xmlns:C=\"" + CALDAV_NS + "\">\n");
+		body.append(" <D:sync-token>").append(escape(token)).append("</D:sync-token>\n");
+		body.append(" <D:sync-level>1</D:sync-level>\n");
+		body.append(" <D:prop>\n  <D:getetag/>\n");
+		if (data) {
+			body.append("  <C:calendar-data/>\n");
+		}
+		body.append(" </D:prop>\n");
+		body.append("</D:sync-collection>\n");
+		return body.toString();
+	}
+
+	/**
+	 * Escape a text for XML content.
+	 *
+	 * @param text text to escape
+	 * @return escaped text
+	 */
+	protected static String escape(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+	/**
+	 * Parse a multistatus response.
+	 *
+	 * @param is stream of the response body
+	 * @return parsed report
+	 * @throws IOException
+	 */
+	public static CalDAVReport parse(InputStream is) throws IOException {
+		Document doc;
+		try {
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setNamespaceAware(true);
+			// the response comes from a remote server: no DOCTYPE, no external entities
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+			factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			factory.setXIncludeAware(false);
+			factory.setExpandEntityReferences(false);
+			doc = factory.newDocumentBuilder().parse(is);
+		} catch (ParserConfigurationException | SAXException ex) {
+			throw new IOException("Invalid multistatus response: " + ex.getLocalizedMessage(), ex);
+		}
+		List<Item> items = new ArrayList<>();
+		NodeList responses = doc.getElementsByTagNameNS(DAV_NS, "response");
+		for (int i = 0; i < responses.getLength(); i++) {
+			Element response = (Element) responses.item(i);
+			String href = text(response, DAV_NS, "href");
+			if (href == null) {
+				continue;
+			}
+			items.add(new Item(href, child(response, DAV_NS, "status"),
+							text(response, DAV_NS, "getetag"), text(response, CALDAV_NS, "calendar-data")));
+		}
+		logger.debug("Parsed report with " + items.size() + " responses");
+		return new CalDAVReport(items, child(doc.getDocumentElement(), DAV_NS, "sync-token"));
+	}
+
+	/**
+	 * Get the text of the first descendant with the given name.
+	 *
+	 * @param parent element to search in
+	 * @param ns namespace of the element
+	 * @param name local name of the element
+	 * @return text content or null
+	 */
+	protected static String text(Element parent, String ns, String name) {
+		NodeList nodes = parent.getElementsByTagNameNS(ns, name);
+		if (nodes.getLength() == 0) {
+			return null;
+		}
+		return nodes.item(0).getTextContent().trim();
+	}
+
+	/**
+	 * Get the text of the first direct child with the given name.
+	 *
+	 * @param parent element to search in
+	 * @param ns namespace of the element
+	 * @param name local name of the element
+	 * @return text content or null
+	 */
+	protected static String child(Element parent, String ns, String name) {
+		for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if ((node.getNodeType() == Node.ELEMENT_NODE) && ns.equals(node.getNamespaceURI())
+							&& name.equals(node.getLocalName())) {
+				return node.getTextContent().trim();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the responses for the resources
+	 */
+	public List<Item> getItems() {
+		return items;
+	}
+
+	/**
+	 * @return the synchronization token of a sync-collection report or null
+	 */
+	public String getSync_token() {
+		return sync_token;
+	}
+
+}
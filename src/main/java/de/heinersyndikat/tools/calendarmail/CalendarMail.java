@@ -1,6 +1,9 @@
 package de.heinersyndikat.tools.calendarmail;
 
 import com.typesafe.config.ConfigException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Optional;
 import java.util.Properties;
 import org.slf4j.Logger;
@@ -72,6 +75,18 @@ public enum CalendarMail {
 		OptionBuilder.withDescription("string to unencrypt");
 		opt = OptionBuilder.create("u");
 		options.addOption(opt);
+		// -r record WebDAV responses
+		OptionBuilder.withArgName("directory");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("record the responses of the WebDAV servers into directory");
+		opt = OptionBuilder.create("r");
+		options.addOption(opt);
+		// -R replay WebDAV responses
+		OptionBuilder.withArgName("directory");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("replay the responses recorded in directory instead of the WebDAV servers");
+		opt = OptionBuilder.create("R");
+		options.addOption(opt);
 		// return options definition
 		return options;
 	}
@@ -107,6 +122,25 @@ public enum CalendarMail {
 			String password = cmdline.getOptionValue("p");
 			CalendarMailConfiguration.INSTANCE.setPassword(password);
 		}
+		// record or replay WebDAV responses
+		if (cmdline.hasOption("r") && cmdline.hasOption("R")) {
+			logger.error("Options -r and -R cannot be combined");
+			System.exit(1);
+		}
+		if (cmdline.hasOption("r")) {
+			logger.debug("found option -r");
+			Path directory = Paths.get(cmdline.getOptionValue("r"));
+			CalendarMailConfiguration.INSTANCE.setCapture(new ResponseCapture(ResponseCapture.Mode.RECORD, directory));
+		}
+		if (cmdline.hasOption("R")) {
+			logger.debug("found option -R");
+			Path directory = Paths.get(cmdline.getOptionValue("R"));
+			if (!Files.isDirectory(directory)) {
+				logger.error("No recorded responses in " + directory);
+				System.exit(1);
+			}
+			CalendarMailConfiguration.INSTANCE.setCapture(new ResponseCapture(ResponseCapture.Mode.REPLAY, directory));
+		}
 		if (cmdline.hasOption("e")) {
 			logger.debug("found option -e");
 			to_encrypt = Optional.of(cmdline.getOptionValue("e"));
@@ -4,18 +4,29 @@ import com.typesafe.config.Config;
 import com.typesafe.config.ConfigBeanFactory;
 import com.typesafe.config.ConfigException;
 import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigObject;
 import java.io.Console;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
+import java.time.DateTimeException;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.ResourceBundle;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,10 +54,20 @@ public enum CalendarMailConfiguration {
 	 * HOCON configuration keyword
 	 */
 	private static final String CONFIG_KEYWORD = "calendarmail";
+	private static final String TIMEZONE_KEYWORD = "timezone";
+	private static final String RELOAD_KEYWORD = "reload";
 	/**
 	 * Internationalization bundle
 	 */
 	private final ResourceBundle messages = ResourceBundle.getBundle("MessageBundle");
+	/**
+	 * compiled email texts by their locale
+	 */
+	private final Map<Locale, MessageTemplates> templates = new ConcurrentHashMap<>();
+	/**
+	 * names of all calendars for the email texts
+	 */
+	private volatile String calendar_names = "";
 	/**
 	 * typesafe HOCON configuration
 	 */
@@ -63,19 +84,47 @@ public enum CalendarMailConfiguration {
 	 * configuration encryption password from commandline option
 	 */
 	private Optional<String> password = Optional.empty();
+	/**
+	 * recording or replay of the WebDAV responses from commandline option
+	 */
+	private Optional<ResponseCapture> capture = Optional.empty();
 
 	/**
 	 * Collection of remote calendars
 	 */
-	private List<RemoteCalendar> calendars;
+	private volatile List<RemoteCalendar> calendars;
 	/**
 	 * Collection of reminders
 	 */
-	private Map<String, Reminder> reminders;
+	private volatile Map<String, Reminder> reminders;
 	/**
 	 * email server
 	 */
-	private EmailServer emailserver;
+	private volatile EmailServer emailserver;
+	/**
+	 * shared cache of calendar events
+	 */
+	private EventCache eventcache = new EventCache();
+	/**
+	 * parallel download of calendar resources
+	 */
+	private FetchService fetch = new FetchService();
+	/**
+	 * time zone the events are displayed in
+	 */
+	private volatile ZoneId timezone = ZoneId.systemDefault();
+	/**
+	 * asynchronous sending of the emails
+	 */
+	private Outbox outbox = new Outbox();
+	/**
+	 * export of the metrics
+	 */
+	private Metrics metrics = new Metrics();
+	/**
+	 * flag, if the configuration file is reloaded on changes
+	 */
+	private boolean reload = true;
 
 	/**
 	 * @param confFile the confFile to set
@@ -84,6 +133,13 @@ public enum CalendarMailConfiguration {
 		this.configurationFile = confFile;
 	}
 
+	/**
+	 * @return the configuration file or null, if the default configuration is used
+	 */
+	public String getConfigurationFile() {
+		return configurationFile;
+	}
+
 	/**
 	 * Load the application properties.
 	 */
@@ -114,10 +170,12 @@ public enum CalendarMailConfiguration {
 		}
 		// parse calendar configuration
 		try {
+			// decrypt all passwords at once, the configuration entries share the results
+			Encryption.decrypt_all(config.root());
 			calendars = config.getConfigList(RemoteCalendar.CONFIG_KEYWORD).stream()
 							.map(c -> ConfigBeanFactory.create(c, RemoteCalendar.class))
 							.collect(Collectors.toList());
-			String calendar_names = getCalendars().stream().map(RemoteCalendar::getHostname)
+			calendar_names = getCalendars().stream().map(RemoteCalendar::getHostname)
 							.collect(Collectors.joining(", "));
 			logger.debug("Loaded configuration for the calendars: " + calendar_names);
 			// parse reminder configuration
@@ -127,21 +185,176 @@ public enum CalendarMailConfiguration {
 			String reminder_names = getReminders().keySet().stream()
 							.collect(Collectors.joining(", "));
 			logger.debug("Loaded configuration for the reminders: " + reminder_names);
+			// compile the email texts of the locales of the reminders
+			templates.clear();
+			getReminders().values().forEach(rem -> getTemplates(rem.getLocale()));
 			// parse configuration for email server
 			emailserver = ConfigBeanFactory
 							.create(config.getConfig(EmailServer.CONFIG_KEYWORD), EmailServer.class);
 			logger.debug("Read email server configuration for address '"
 							+ getEmailserver().getFrom()
 							+ "' on server " + getEmailserver().getHostname());
+			// parse optional configuration of the event cache
+			if (config.hasPath(EventCache.CONFIG_KEYWORD)) {
+				eventcache = ConfigBeanFactory
+								.create(config.getConfig(EventCache.CONFIG_KEYWORD), EventCache.class);
+			}
+			logger.debug("Event cache limited to " + getEventcache().getMax_size().toBytes() + " bytes");
+			getEventcache().restore();
+			// parse optional configuration of the calendar downloads
+			if (config.hasPath(FetchService.CONFIG_KEYWORD)) {
+				fetch = ConfigBeanFactory
+								.create(config.getConfig(FetchService.CONFIG_KEYWORD), FetchService.class);
+			}
+			logger.debug("Downloading with " + getFetch().getThreads() + " threads, "
+							+ getFetch().getConnections_per_host() + " connections per host");
+			// parse optional time zone of the event display
+			timezone = parseTimezone(config);
+			logger.debug("Displaying events in time zone " + getTimezone());
+			// parse optional configuration of the email sending
+			if (config.hasPath(Outbox.CONFIG_KEYWORD)) {
+				outbox = ConfigBeanFactory
+								.create(config.getConfig(Outbox.CONFIG_KEYWORD), Outbox.class);
+			}
+			getOutbox().resume();
+			// parse optional configuration of the metrics export
+			if (config.hasPath(Metrics.CONFIG_KEYWORD)) {
+				metrics = ConfigBeanFactory
+								.create(config.getConfig(Metrics.CONFIG_KEYWORD), Metrics.class);
+			}
+			getMetrics().start();
+			// parse optional flag for reloading the configuration file
+			if (config.hasPath(RELOAD_KEYWORD)) {
+				reload = config.getBoolean(RELOAD_KEYWORD);
+			}
 		} catch (ConfigException ex) {
-			Throwable internal = ex.getCause();
-			// unpack exceptions from reflection packed in InvocationTargetException
-			if ((internal != null) && (internal.getClass() == InvocationTargetException.class)) {
-				InvocationTargetException invoc = (InvocationTargetException) internal;
-				throw new ConfigException.Generic(ex.getMessage(), invoc.getTargetException());
-			} else {
-				throw ex;
+			throw unpack(ex);
+		}
+	}
+
+	/**
+	 * Reload the configuration file and apply the differences.
+	 *
+	 * The calendars, reminders and the email server are compared with the
+	 * running ones by their configuration. Unchanged calendars are kept
+	 * together with their connections, so their cached events stay valid;
+	 * only the changed reminders are rescheduled. Changes of the other
+	 * sections take effect after a restart.
+	 *
+	 * @throws ConfigException if the configuration is invalid; the running
+	 * configuration is kept then
+	 * @throws MailExceptionWrapper if a password cannot be decrypted
+	 */
+	public synchronized void reload() throws ConfigException, MailExceptionWrapper {
+		Config fresh = ConfigFactory.parseFile(new File(configurationFile)).getConfig(CONFIG_KEYWORD);
+		if (fresh.root().equals(config.root())) {
+			logger.debug("Configuration file unchanged");
+			return;
+		}
+		List<RemoteCalendar> new_calendars = new ArrayList<>();
+		Map<String, Reminder> new_reminders = new HashMap<>();
+		Set<String> changed = new HashSet<>();
+		EmailServer new_emailserver = emailserver;
+		ZoneId new_timezone;
+		int kept = 0;
+		try {
+			Encryption.decrypt_all(fresh.root());
+			// keep the unchanged calendars with their connections
+			List<? extends ConfigObject> running = config.getObjectList(RemoteCalendar.CONFIG_KEYWORD);
+			for (ConfigObject calendar : fresh.getObjectList(RemoteCalendar.CONFIG_KEYWORD)) {
+				int index = running.indexOf(calendar);
+				if (index >= 0) {
+					new_calendars.add(calendars.get(index));
+					kept++;
+				} else {
+					new_calendars.add(ConfigBeanFactory.create(calendar.toConfig(), RemoteCalendar.class));
+				}
+			}
+			// keep the unchanged reminders
+			Map<String, ConfigObject> running_reminders = config.getObjectList(Reminder.CONFIG_KEYWORD).stream()
+							.collect(Collectors.toMap(r -> r.toConfig().getString("name"), r -> r));
+			for (ConfigObject reminder : fresh.getObjectList(Reminder.CONFIG_KEYWORD)) {
+				String name = reminder.toConfig().getString("name");
+				if (reminder.equals(running_reminders.get(name))) {
+					new_reminders.put(name, reminders.get(name));
+				} else {
+					new_reminders.put(name, ConfigBeanFactory.create(reminder.toConfig(), Reminder.class));
+					changed.add(name);
+				}
+			}
+			new_reminders.values().forEach(rem -> getTemplates(rem.getLocale()));
+			// replace the email server only if changed
+			if (!fresh.getValue(EmailServer.CONFIG_KEYWORD).equals(config.getValue(EmailServer.CONFIG_KEYWORD))) {
+				new_emailserver = ConfigBeanFactory
+								.create(fresh.getConfig(EmailServer.CONFIG_KEYWORD), EmailServer.class);
 			}
+			new_timezone = parseTimezone(fresh);
+		} catch (ConfigException ex) {
+			throw unpack(ex);
+		}
+		// report changes not applied while running
+		Set<String> sections = new HashSet<>(fresh.root().keySet());
+		sections.addAll(config.root().keySet());
+		sections.removeAll(Arrays.asList(RemoteCalendar.CONFIG_KEYWORD, Reminder.CONFIG_KEYWORD,
+						EmailServer.CONFIG_KEYWORD, TIMEZONE_KEYWORD));
+		sections.stream()
+						.filter(key -> !Objects.equals(fresh.root().get(key), config.root().get(key)))
+						.forEach(key -> logger.warn("Changed configuration of '" + key
+										+ "' takes effect after a restart"));
+		// apply the changes
+		Set<String> removed = new HashSet<>(reminders.keySet());
+		removed.removeAll(new_reminders.keySet());
+		EmailServer old_emailserver = emailserver;
+		config = fresh;
+		calendars = new_calendars;
+		calendar_names = new_calendars.stream().map(RemoteCalendar::getHostname)
+						.collect(Collectors.joining(", "));
+		reminders = new_reminders;
+		emailserver = new_emailserver;
+		timezone = new_timezone;
+		// the kept reminders recreate their texts with the new calendar names and time zone
+		new_reminders.values().forEach(Reminder::resetGlobals);
+		if (new_emailserver != old_emailserver) {
+			logger.info("Email server changed to " + new_emailserver.getHostname());
+			old_emailserver.close();
+		}
+		logger.info("Reloaded configuration: kept " + kept + " of " + new_calendars.size() + " calendars, "
+						+ changed.size() + " new or changed and " + removed.size() + " removed reminders");
+		ReminderJob.reschedule(changed, removed);
+	}
+
+	/**
+	 * Parse the optional time zone of the event display.
+	 *
+	 * @param conf configuration to parse
+	 * @return configured time zone or the time zone of the system
+	 * @throws ConfigException.BadValue if the time zone is unknown
+	 */
+	protected static ZoneId parseTimezone(Config conf) throws ConfigException.BadValue {
+		if (!conf.hasPath(TIMEZONE_KEYWORD)) {
+			return ZoneId.systemDefault();
+		}
+		try {
+			return ZoneId.of(conf.getString(TIMEZONE_KEYWORD));
+		} catch (DateTimeException ex) {
+			throw new ConfigException.BadValue(conf.origin(), TIMEZONE_KEYWORD,
+							ex.getLocalizedMessage(), ex);
+		}
+	}
+
+	/**
+	 * Unpack exceptions from reflection packed in InvocationTargetException.
+	 *
+	 * @param ex exception of the configuration
+	 * @return exception with the original cause
+	 */
+	protected static ConfigException unpack(ConfigException ex) {
+		Throwable internal = ex.getCause();
+		if ((internal != null) && (internal.getClass() == InvocationTargetException.class)) {
+			InvocationTargetException invoc = (InvocationTargetException) internal;
+			return new ConfigException.Generic(ex.getMessage(), invoc.getTargetException());
+		} else {
+			return ex;
 		}
 	}
 
@@ -159,6 +372,15 @@ public enum CalendarMailConfiguration {
 		return reminders;
 	}
 
+	/**
+	 * @return the largest number of days in advance of all reminders
+	 */
+	public int getMaxDaysInAdvance() {
+		return getReminders().values().stream()
+						.mapToInt(Reminder::getDays_in_advance)
+						.max().orElse(0);
+	}
+
 	/**
 	 * @return the emailserver
 	 */
@@ -166,6 +388,48 @@ public enum CalendarMailConfiguration {
 		return emailserver;
 	}
 
+	/**
+	 * @return the eventcache
+	 */
+	public EventCache getEventcache() {
+		return eventcache;
+	}
+
+	/**
+	 * @return the fetch
+	 */
+	public FetchService getFetch() {
+		return fetch;
+	}
+
+	/**
+	 * @return the timezone
+	 */
+	public ZoneId getTimezone() {
+		return timezone;
+	}
+
+	/**
+	 * @return the outbox
+	 */
+	public Outbox getOutbox() {
+		return outbox;
+	}
+
+	/**
+	 * @return the metrics
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the flag, if the configuration file is reloaded on changes
+	 */
+	public boolean isReload() {
+		return reload;
+	}
+
 	/**
 	 * Prompt input of password.
 	 * @return entered password
@@ -219,6 +483,39 @@ public enum CalendarMailConfiguration {
 		this.singleExecution = singleExecution;
 	}
 
+	/**
+	 * @return the recording or replay of the WebDAV responses, if any
+	 */
+	public Optional<ResponseCapture> getCapture() {
+		return capture;
+	}
+
+	/**
+	 * @param capture the recording or replay of the WebDAV responses
+	 */
+	public void setCapture(ResponseCapture capture) {
+		this.capture = Optional.of(capture);
+	}
+
+	/**
+	 * Get the compiled email texts of a locale, compile them on first use.
+	 *
+	 * @param locale language tag of the locale or empty for the default
+	 * locale
+	 * @return compiled email texts
+	 */
+	public MessageTemplates getTemplates(String locale) {
+		Locale loc = locale.isEmpty() ? Locale.getDefault() : Locale.forLanguageTag(locale);
+		return templates.computeIfAbsent(loc, l -> new MessageTemplates(l, getAppProperties()));
+	}
+
+	/**
+	 * @return the names of all calendars separated by commas
+	 */
+	public String getCalendarNames() {
+		return calendar_names;
+	}
+
 	/**
 	 * @return the messages
 	 */
@@ -0,0 +1,123 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import com.typesafe.config.ConfigException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reload of the configuration file on changes.
+ *
+ * The directory of the configuration file is watched; after the file has
+ * been changed and no further change followed for a short time, the
+ * configuration is reloaded. An invalid configuration is reported and the
+ * running configuration is kept.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class ConfigWatcher implements Runnable {
+
+	/**
+	 * Logger instance
+	 */
+	private static transient final Logger logger
+					= LoggerFactory.getLogger(Thread.currentThread().getStackTrace()[1].getClassName());
+
+	/**
+	 * time in milliseconds without further changes before reloading
+	 */
+	protected static final long SETTLE_MILLIS = 500;
+
+	private final Path file;
+	private final WatchService watcher;
+
+	/**
+	 * @param file configuration file to watch
+	 * @throws IOException if the directory cannot be watched
+	 */
+	protected ConfigWatcher(Path file) throws IOException {
+		this.file = file.toAbsolutePath();
+		this.watcher = this.file.getFileSystem().newWatchService();
+		this.file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY);
+	}
+
+	/**
+	 * Start watching the configuration file in a background thread.
+	 *
+	 * @param file configuration file to watch
+	 */
+	public static void start(Path file) {
+		try {
+			Thread thread = new Thread(new ConfigWatcher(file), "config-watcher");
+			thread.setDaemon(true);
+			thread.start();
+			logger.info("Watching configuration file " + file + " for changes");
+		} catch (IOException ex) {
+			logger.warn("Unable to watch configuration file " + file + ": " + ex.getLocalizedMessage());
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				if (changed(watcher.take())) {
+					// wait until the file is completely written
+					WatchKey key;
+					while ((key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+						changed(key);
+					}
+					reload();
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Check the events of a key for the configuration file.
+	 *
+	 * @param key signalled key
+	 * @return true, if the configuration file has changed
+	 */
+	protected boolean changed(WatchKey key) {
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if ((event.kind() == StandardWatchEventKinds.OVERFLOW)
+							|| file.getFileName().equals(event.context())) {
+				changed = true;
+			}
+		}
+		key.reset();
+		return changed;
+	}
+
+	/**
+	 * Reload the configuration, keep the running one on errors.
+	 */
+	protected void reload() {
+		logger.info("Configuration file " + file + " changed - reloading");
+		try {
+			CalendarMailConfiguration.INSTANCE.reload();
+		} catch (ConfigException ex) {
+			Throwable internal = ex.getCause();
+			logger.error("Reloading configuration failed, keeping the running configuration: "
+							+ ((internal != null) ? internal.getLocalizedMessage() : ex.getLocalizedMessage()));
+		} catch (MailExceptionWrapper ex) {
+			logger.error("Decrypting reloaded configuration failed, keeping the running configuration: "
+							+ ex.getCause().getLocalizedMessage());
+		} catch (RuntimeException ex) {
+			logger.error("Reloading configuration failed, keeping the running configuration: "
+							+ ex.getClass().getSimpleName() + ": " + ex.getLocalizedMessage());
+		}
+	}
+
+}
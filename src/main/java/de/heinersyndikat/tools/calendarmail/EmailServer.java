@@ -1,14 +1,22 @@
 package de.heinersyndikat.tools.calendarmail;
 
 import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.concurrent.Semaphore;
 import javax.mail.Address;
 import javax.mail.Authenticator;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.PasswordAuthentication;
+import javax.mail.SendFailedException;
 import javax.mail.Session;
+import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 import org.slf4j.Logger;
@@ -17,6 +25,11 @@ import org.slf4j.LoggerFactory;
 /**
  * Email server configuration.
  *
+ * The messages are sent via a pool of connections to the server, which are
+ * kept open for reuse until they are idle for the configured time. With
+ * ssl_connect the connections use SSL from the start (smtps), otherwise
+ * they are upgraded by STARTTLS, if the server supports it.
+ *
  * @author Sven Bauhan <sde@sven.bauhan.name>
  */
 public class EmailServer {
@@ -29,7 +42,48 @@ public class EmailServer {
 
 	public static final String CONFIG_KEYWORD = "emailserver";
 
+	/**
+	 * Open connection to the server.
+	 */
+	protected static class PooledTransport {
+
+		private final Transport transport;
+		private long last_used;
+
+		PooledTransport(Transport transport) {
+			this.transport = transport;
+			this.last_used = System.currentTimeMillis();
+		}
+
+		/**
+		 * @return true, if the last message may have reached the server
+		 */
+		boolean isData_sent() {
+			return !(transport instanceof TrackedSMTPTransport)
+							|| ((TrackedSMTPTransport) transport).isData_sent();
+		}
+
+		/**
+		 * Close the connection, ignoring errors.
+		 */
+		void close() {
+			try {
+				transport.close();
+			} catch (MessagingException ex) {
+				logger.debug("Closing SMTP connection failed: " + ex.getLocalizedMessage());
+			}
+		}
+	}
+
 	private Session session = null;
+	/**
+	 * idle connections, the most recently used first
+	 */
+	private final Deque<PooledTransport> idle = new ArrayDeque<>();
+	/**
+	 * number of connections available
+	 */
+	private Semaphore connections = null;
 
 	private String hostname;
 	private int smtp_port;
@@ -37,37 +91,242 @@ public class EmailServer {
 	private String password;
 	private boolean ssl_connect;
 	private String from;
+	@com.typesafe.config.Optional
+	private int pool_size = 2;
+	@com.typesafe.config.Optional
+	private Duration idle_timeout = Duration.ofMinutes(1);
+	@com.typesafe.config.Optional
+	private int max_recipients = 50;
 
 	/**
 	 * Get the configured sesseion for message creation.
 	 * 
 	 * @return session
 	 */
-	protected Session getSession() {
+	protected synchronized Session getSession() {
 		if (session == null) {
+			String protocol = getProtocol();
 			Properties properties = new Properties();
-			properties.put("mail.transport.protocol", "smtp");
-			properties.setProperty("mail.smtp.host", getHostname());
-			properties.put("mail.smtp.port", getSmtp_port());
-			properties.put("mail.smtp.auth", "true");
+			properties.put("mail.transport.protocol", protocol);
+			properties.setProperty("mail." + protocol + ".host", getHostname());
+			properties.put("mail." + protocol + ".port", Integer.toString(getSmtp_port()));
+			properties.put("mail." + protocol + ".auth", "true");
+			// deliver to the valid receivers, even if others are refused
+			properties.put("mail." + protocol + ".sendpartial", "true");
+			if (!isSsl_connect()) {
+				properties.put("mail.smtp.starttls.enable", "true");
+			}
 			Authenticator auth = new Authenticator() {
 				@Override
 				protected PasswordAuthentication getPasswordAuthentication() {
 					return new PasswordAuthentication(getUsername(), getPassword());
 				}
 			};
-			session = Session.getDefaultInstance(properties, auth);
+			session = Session.getInstance(properties, auth);
 		}
 		return session;
 	}
 
+	/**
+	 * @return the transport protocol according to ssl_connect
+	 */
+	protected String getProtocol() {
+		return isSsl_connect() ? "smtps" : "smtp";
+	}
+
+	/**
+	 * Send a message via a pooled connection.
+	 *
+	 * Blocks until a connection is available. If the connection fails before
+	 * the message data is sent, the message is sent once more via a new
+	 * connection. A failure afterwards is passed to the caller, since the
+	 * server may already have accepted the message.
+	 *
+	 * @param message message to send
+	 * @throws MessagingException
+	 */
+	public void send(Message message) throws MessagingException {
+		send(message, null);
+	}
+
+	/**
+	 * Send a message to some of its receivers via a pooled connection.
+	 *
+	 * @param message message to send
+	 * @param recipients receivers to send to, null for all of the message
+	 * @throws MessagingException
+	 */
+	public void send(Message message, Address[] recipients) throws MessagingException {
+		Semaphore available = getConnections();
+		available.acquireUninterruptibly();
+		try {
+			message.saveChanges();
+			if (recipients == null) {
+				recipients = message.getAllRecipients();
+			}
+			long started = System.nanoTime();
+			PooledTransport pooled = borrow();
+			try {
+				pooled.transport.sendMessage(message, recipients);
+			} catch (SendFailedException ex) {
+				// refused addresses, the connection is still usable
+				release(pooled);
+				throw ex;
+			} catch (MessagingException ex) {
+				pooled.close();
+				if (pooled.isData_sent()) {
+					throw ex;
+				}
+				logger.info("SMTP connection failed (" + ex.getLocalizedMessage() + ") - reconnecting");
+				pooled = connect();
+				try {
+					pooled.transport.sendMessage(message, recipients);
+				} catch (MessagingException retry) {
+					pooled.close();
+					throw retry;
+				}
+			}
+			Metrics.latency("smtp_send", "server", getHostname()).since(started);
+			release(pooled);
+		} finally {
+			available.release();
+		}
+	}
+
+	/**
+	 * Send several messages one after another via a single connection.
+	 *
+	 * If the connection fails, it is reopened once and the sending continues
+	 * with the failed message, unless its data was already sent. Messages
+	 * refused by the server do not stop the sending of the following ones.
+	 *
+	 * @param messages messages to send
+	 * @return failure of each message, null for the sent messages
+	 */
+	public MessagingException[] sendAll(List<? extends Message> messages) {
+		MessagingException[] failures = new MessagingException[messages.size()];
+		Semaphore available = getConnections();
+		available.acquireUninterruptibly();
+		try {
+			PooledTransport pooled = null;
+			boolean reconnected = false;
+			for (int i = 0; i < messages.size(); i++) {
+				Message message = messages.get(i);
+				try {
+					if (pooled == null) {
+						pooled = borrow();
+					}
+					message.saveChanges();
+					long started = System.nanoTime();
+					pooled.transport.sendMessage(message, message.getAllRecipients());
+					Metrics.latency("smtp_send", "server", getHostname()).since(started);
+				} catch (SendFailedException ex) {
+					failures[i] = ex;
+				} catch (MessagingException ex) {
+					boolean data_sent = false;
+					if (pooled != null) {
+						data_sent = pooled.isData_sent();
+						pooled.close();
+						pooled = null;
+					}
+					if (reconnected || data_sent) {
+						// the server may already have accepted the message
+						failures[i] = ex;
+						continue;
+					}
+					logger.info("SMTP connection failed (" + ex.getLocalizedMessage() + ") - reconnecting");
+					reconnected = true;
+					i--;
+				}
+			}
+			if (pooled != null) {
+				release(pooled);
+			}
+		} finally {
+			available.release();
+		}
+		return failures;
+	}
+
+	/**
+	 * Take an idle connection or open a new one.
+	 *
+	 * Connections idle longer than the idle timeout are closed.
+	 *
+	 * @return connection to the server
+	 * @throws MessagingException
+	 */
+	protected PooledTransport borrow() throws MessagingException {
+		long oldest = System.currentTimeMillis() - getIdle_timeout().toMillis();
+		while (true) {
+			PooledTransport pooled;
+			synchronized (idle) {
+				pooled = idle.pollFirst();
+			}
+			if (pooled == null) {
+				return connect();
+			}
+			if ((pooled.last_used >= oldest) && pooled.transport.isConnected()) {
+				return pooled;
+			}
+			pooled.close();
+		}
+	}
+
+	/**
+	 * Open a new connection to the server.
+	 *
+	 * @return connection to the server
+	 * @throws MessagingException
+	 */
+	protected PooledTransport connect() throws MessagingException {
+		Transport transport = getSession().getTransport(TrackedSMTPTransport.provider(getProtocol()));
+		transport.connect(getHostname(), getSmtp_port(), getUsername(), getPassword());
+		logger.debug("Opened SMTP connection to " + getHostname());
+		return new PooledTransport(transport);
+	}
+
+	/**
+	 * Return a connection to the pool.
+	 *
+	 * @param pooled connection to the server
+	 */
+	protected void release(PooledTransport pooled) {
+		pooled.last_used = System.currentTimeMillis();
+		synchronized (idle) {
+			idle.addFirst(pooled);
+		}
+	}
+
+	/**
+	 * Close all idle connections.
+	 */
+	public void close() {
+		List<PooledTransport> closing;
+		synchronized (idle) {
+			closing = new ArrayList<>(idle);
+			idle.clear();
+		}
+		closing.forEach(PooledTransport::close);
+	}
+
+	/**
+	 * @return semaphore of the available connections, created on first use
+	 */
+	protected synchronized Semaphore getConnections() {
+		if (connections == null) {
+			connections = new Semaphore(Math.max(1, getPool_size()));
+		}
+		return connections;
+	}
+
 	/**
 	 * Creates a new message with predefined headers.
 	 * 
 	 * @return created Message
 	 * @throws MessagingException 
 	 */
-	public Message createMessage() throws MessagingException {
+	public MimeMessage createMessage() throws MessagingException {
 		MimeMessage message = new MimeMessage(getSession());
 		Address fromAddr = new InternetAddress(getFrom(), true);
 		logger.debug("From set to: " + fromAddr.toString());
@@ -76,6 +335,15 @@ public class EmailServer {
 		return message;
 	}
 
+	/**
+	 * Discard the session and connections after a change of the server
+	 * settings.
+	 */
+	protected synchronized void resetSession() {
+		session = null;
+		close();
+	}
+
 	/**
 	 * @return the hostname
 	 */
@@ -87,7 +355,7 @@ public class EmailServer {
 	 * @param hostname the hostname to set
 	 */
 	public void setHostname(String hostname) {
-		this.session = null;
+		resetSession();
 		this.hostname = hostname;
 	}
 
@@ -102,7 +370,7 @@ public class EmailServer {
 	 * @param smtp_port the smtp_port to set
 	 */
 	public void setSmtp_port(int smtp_port) {
-		this.session = null;
+		resetSession();
 		this.smtp_port = smtp_port;
 	}
 
@@ -117,7 +385,7 @@ public class EmailServer {
 	 * @param username the username to set
 	 */
 	public void setUsername(String username) {
-		this.session = null;
+		resetSession();
 		this.username = username;
 	}
 
@@ -132,10 +400,9 @@ public class EmailServer {
 	 * @param password the password to set
 	 */
 	public void setPassword(String password) throws NoSuchElementException, MailExceptionWrapper {
-		this.session = null;
+		resetSession();
 		try {
-			Encryption encryption = new Encryption();
-			this.password = encryption.check_decrypt(password);
+			this.password = Encryption.check_decrypt(password);
 		} catch (GeneralSecurityException ex) {
 			throw new MailExceptionWrapper(ex);
 		}
@@ -152,7 +419,7 @@ public class EmailServer {
 	 * @param ssl_connect the ssl_connect to set
 	 */
 	public void setSsl_connect(boolean ssl_connect) {
-		this.session = null;
+		resetSession();
 		this.ssl_connect = ssl_connect;
 	}
 
@@ -167,8 +434,50 @@ public class EmailServer {
 	 * @param from the from to set
 	 */
 	public void setFrom(String from) {
-		this.session = null;
 		this.from = from;
 	}
 
+	/**
+	 * @return the pool_size
+	 */
+	public int getPool_size() {
+		return pool_size;
+	}
+
+	/**
+	 * @param pool_size the pool_size to set
+	 */
+	public synchronized void setPool_size(int pool_size) {
+		this.connections = null;
+		this.pool_size = pool_size;
+	}
+
+	/**
+	 * @return the max_recipients
+	 */
+	public int getMax_recipients() {
+		return max_recipients;
+	}
+
+	/**
+	 * @param max_recipients the max_recipients to set
+	 */
+	public void setMax_recipients(int max_recipients) {
+		this.max_recipients = max_recipients;
+	}
+
+	/**
+	 * @return the idle_timeout
+	 */
+	public Duration getIdle_timeout() {
+		return idle_timeout;
+	}
+
+	/**
+	 * @param idle_timeout the idle_timeout to set
+	 */
+	public void setIdle_timeout(Duration idle_timeout) {
+		this.idle_timeout = idle_timeout;
+	}
+
 }
@@ -1,12 +1,20 @@
 package de.heinersyndikat.tools.calendarmail;
 
+import com.typesafe.config.ConfigList;
+import com.typesafe.config.ConfigObject;
+import com.typesafe.config.ConfigValue;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Base64;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.crypto.BadPaddingException;
@@ -35,6 +43,18 @@ public class Encryption {
 	private static final Pattern ENCRYPTED = Pattern.compile("^ENC\\((.+)\\)$");
 	private final static String DEFAULT_SALT = "12345678";
 	private static final String ALGORITHM_NAME = "PBEWithMD5AndDES";
+	/**
+	 * key derived once from the encryption password
+	 */
+	private static SecretKey key = null;
+	/**
+	 * password the key was derived from
+	 */
+	private static String key_password = null;
+	/**
+	 * decrypted secrets by their encrypted value
+	 */
+	private static final Map<String, String> secrets = new ConcurrentHashMap<>();
 	private final PBEParameterSpec pbeParamSpec;
 	private final Cipher cipher;
 
@@ -88,20 +108,29 @@ public class Encryption {
 	}
 
 	/**
-	 * Create key from password.
-	 * 
-	 * @return created key
+	 * Get the key of the encryption password.
+	 *
+	 * The key is derived only once per password and shared by all instances.
+	 *
+	 * @return derived key
 	 * @throws NoSuchAlgorithmException
-	 * @throws InvalidKeySpecException 
+	 * @throws InvalidKeySpecException
 	 */
 	protected SecretKey createKey() throws NoSuchElementException, NoSuchAlgorithmException, InvalidKeySpecException {
-		String password = CalendarMailConfiguration.INSTANCE.getPassword();
-		// Convert password to SecretKey object
-		SecretKeyFactory keyFac = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
-		PBEKeySpec pbeKeySpec = new PBEKeySpec(password.toCharArray());
-		return keyFac.generateSecret(pbeKeySpec);
+		synchronized (Encryption.class) {
+			String password = CalendarMailConfiguration.INSTANCE.getPassword();
+			if ((key == null) || !password.equals(key_password)) {
+				// Convert password to SecretKey object
+				SecretKeyFactory keyFac = SecretKeyFactory.getInstance(ALGORITHM_NAME);
+				PBEKeySpec pbeKeySpec = new PBEKeySpec(password.toCharArray());
+				key = keyFac.generateSecret(pbeKeySpec);
+				key_password = password;
+				secrets.clear();
+			}
+			return key;
+		}
 	}
-	
+
 	/**
 	 * Encrypt a given string.
 	 * 
@@ -144,19 +173,92 @@ public class Encryption {
 
 	/**
 	 * Check, if given string is encrypted.
-	 * 
-	 * @param given  string to be checked
+	 *
+	 * Each encrypted value is decrypted only once; the result is shared by
+	 * all configuration entries with the same value.
+	 *
+	 * @param given string to be checked
+	 * @return decrypted string
+	 * @throws GeneralSecurityException
+	 */
+	public static String check_decrypt(String given) throws NoSuchElementException, GeneralSecurityException {
+		return check_decrypt(given, null);
+	}
+
+	/**
+	 * Check, if given string is encrypted, using the given encryptor.
+	 *
+	 * @param given string to be checked
+	 * @param encryption encryptor to decrypt with or null for a new one
 	 * @return decrypted string
-	 * @throws GeneralSecurityException 
+	 * @throws GeneralSecurityException
 	 */
-	public String check_decrypt(String given) throws NoSuchElementException, GeneralSecurityException {
+	protected static String check_decrypt(String given, Encryption encryption)
+					throws NoSuchElementException, GeneralSecurityException {
 		Matcher match = ENCRYPTED.matcher(given);
-		if (match.matches()) {
-			String encrypted = match.group(1);
-			logger.info("Found encrypted entry: " + encrypted);
-			return decrypt(encrypted);
-		} else {
+		if (!match.matches()) {
 			return given;
 		}
+		String encrypted = match.group(1);
+		String decrypted = secrets.get(encrypted);
+		if (decrypted == null) {
+			logger.info("Found encrypted entry: " + encrypted);
+			decrypted = ((encryption != null) ? encryption : new Encryption()).decrypt(encrypted);
+			secrets.put(encrypted, decrypted);
+		}
+		return decrypted;
+	}
+
+	/**
+	 * Decrypt all encrypted values of a configuration in one pass.
+	 *
+	 * All values are decrypted by a single cipher. Afterwards the
+	 * configuration entries get their decrypted values from the cache.
+	 *
+	 * @param config configuration to search for encrypted values
+	 * @throws MailExceptionWrapper if a value cannot be decrypted
+	 */
+	public static void decrypt_all(ConfigValue config) throws NoSuchElementException, MailExceptionWrapper {
+		Set<String> encrypted = new HashSet<>();
+		collect(config, encrypted);
+		if (encrypted.isEmpty()) {
+			return;
+		}
+		long started = System.nanoTime();
+		try {
+			Encryption encryption = new Encryption();
+			for (String value : encrypted) {
+				check_decrypt(value, encryption);
+			}
+		} catch (GeneralSecurityException ex) {
+			throw new MailExceptionWrapper(ex);
+		}
+		logger.debug("Decrypted " + encrypted.size() + " secrets in "
+						+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+	}
+
+	/**
+	 * Collect the encrypted string values.
+	 *
+	 * @param value configuration value to search
+	 * @param encrypted found encrypted values
+	 */
+	protected static void collect(ConfigValue value, Set<String> encrypted) {
+		switch (value.valueType()) {
+			case OBJECT:
+				((ConfigObject) value).values().forEach(v -> collect(v, encrypted));
+				break;
+			case LIST:
+				((ConfigList) value).forEach(v -> collect(v, encrypted));
+				break;
+			case STRING:
+				String string = (String) value.unwrapped();
+				if (ENCRYPTED.matcher(string).matches()) {
+					encrypted.add(string);
+				}
+				break;
+			default:
+				break;
+		}
 	}
 }
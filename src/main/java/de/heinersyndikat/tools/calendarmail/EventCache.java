@@ -0,0 +1,567 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import com.typesafe.config.ConfigMemorySize;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Period;
+import net.fortuna.ical4j.model.component.VEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared cache of parsed calendar events.
+ *
+ * The entries are identified by the address and user of the calendar and
+ * are valid for the time to live configured for each calendar; expired
+ * entries are revalidated using their entity or collection tags. The
+ * estimated size of all entries is limited by a memory budget; if it is
+ * exceeded, the least recently used entries are evicted.
+ *
+ * Optionally the entries are kept in a snapshot file. The entries restored
+ * at program start are used immediately, while they are revalidated at the
+ * server in the background.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class EventCache {
+
+	/**
+	 * Logger instance
+	 */
+	private static transient final Logger logger
+					= LoggerFactory.getLogger(Thread.currentThread().getStackTrace()[1].getClassName());
+
+	public static final String CONFIG_KEYWORD = "cache";
+	/**
+	 * estimated heap usage of the parsed events per byte of iCal data
+	 */
+	protected static final int HEAP_FACTOR = 10;
+
+	/**
+	 * Parsed events of a single iCal resource of a calendar collection.
+	 */
+	protected static class Resource {
+
+		private final String etag;
+		private final List<VEvent> events;
+		private final long bytes;
+		private final LocalDate until;
+
+		/**
+		 * Initialization constructor.
+		 *
+		 * @param etag entity tag of the parsed version or null
+		 * @param events parsed events
+		 * @param bytes number of bytes the events were parsed from
+		 * @param until last day the events were extracted for
+		 */
+		Resource(String etag, List<VEvent> events, long bytes, LocalDate until) {
+			this.etag = etag;
+			this.events = events;
+			this.bytes = bytes;
+			this.until = until;
+		}
+
+		/**
+		 * @param needed last day of events needed
+		 * @return true, if the events were extracted up to the given day
+		 */
+		boolean covers(LocalDate needed) {
+			return !until.isBefore(needed);
+		}
+
+		/**
+		 * @return the entity tag of the parsed version or null
+		 */
+		String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * @return the events
+		 */
+		List<VEvent> getEvents() {
+			return events;
+		}
+
+		/**
+		 * @return number of bytes the events were parsed from
+		 */
+		long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return last day the events were extracted for
+		 */
+		LocalDate getUntil() {
+			return until;
+		}
+	}
+
+	/**
+	 * Cached events of a calendar.
+	 *
+	 * Besides the events the entity tag of a single iCal file or the
+	 * collection tag (getctag) and the state of the contained resources of a
+	 * calendar collection are kept to revalidate the entry. For a synchronized
+	 * collection the tag is the synchronization token instead.
+	 */
+	protected static class Entry {
+
+		private final String tag;
+		private final boolean sync;
+		private final Map<String, Resource> resources;
+		private final List<VEvent> events;
+		private final long size;
+		private final long created;
+		private final LocalDate until;
+		private final boolean restored;
+		/**
+		 * index of the events, built on first use
+		 */
+		private EventIndex index = null;
+
+		/**
+		 * Entry for a single iCal file.
+		 *
+		 * @param tag entity tag of the file or null
+		 * @param events parsed events
+		 * @param bytes number of bytes the events were parsed from
+		 * @param until last day the events were extracted for
+		 */
+		Entry(String tag, List<VEvent> events, long bytes, LocalDate until) {
+			this.tag = tag;
+			this.sync = false;
+			this.resources = Collections.emptyMap();
+			this.events = Collections.unmodifiableList(events);
+			this.size = bytes * HEAP_FACTOR;
+			this.created = System.currentTimeMillis();
+			this.until = until;
+			this.restored = false;
+		}
+
+		/**
+		 * Entry for a calendar collection.
+		 *
+		 * @param tag collection tag or null
+		 * @param resources parsed resources by their address
+		 */
+		Entry(String tag, Map<String, Resource> resources) {
+			this(tag, resources, false);
+		}
+
+		/**
+		 * Entry for a calendar collection.
+		 *
+		 * @param tag collection tag, synchronization token or null
+		 * @param resources parsed resources by their address
+		 * @param sync true, if the tag is a synchronization token
+		 */
+		Entry(String tag, Map<String, Resource> resources, boolean sync) {
+			this.tag = tag;
+			this.sync = sync;
+			this.resources = Collections.unmodifiableMap(resources);
+			this.events = Collections.unmodifiableList(resources.values().stream()
+							.flatMap(r -> r.events.stream())
+							.collect(Collectors.toList()));
+			this.size = resources.values().stream().mapToLong(r -> r.bytes).sum() * HEAP_FACTOR;
+			this.created = System.currentTimeMillis();
+			this.until = resources.values().stream().map(r -> r.until)
+							.min(LocalDate::compareTo).orElse(LocalDate.MAX);
+			this.restored = false;
+		}
+
+		/**
+		 * Copy of an entry revalidated at the server.
+		 *
+		 * @param revalidated entry to be copied
+		 */
+		Entry(Entry revalidated) {
+			this.tag = revalidated.tag;
+			this.sync = revalidated.sync;
+			this.resources = revalidated.resources;
+			this.events = revalidated.events;
+			this.size = revalidated.size;
+			this.created = System.currentTimeMillis();
+			this.until = revalidated.until;
+			this.restored = false;
+			this.index = revalidated.index;
+		}
+
+		/**
+		 * Copy of an entry restored from a snapshot.
+		 *
+		 * @param restored entry read from the snapshot
+		 * @param created time the entry was originally read
+		 */
+		Entry(Entry restored, long created) {
+			this.tag = restored.tag;
+			this.sync = restored.sync;
+			this.resources = restored.resources;
+			this.events = restored.events;
+			this.size = restored.size;
+			this.created = created;
+			this.until = restored.until;
+			this.restored = true;
+		}
+
+		/**
+		 * @param ttl time to live of the entry
+		 * @return true, if the entry is older than the given time to live
+		 */
+		boolean isExpired(Duration ttl) {
+			return System.currentTimeMillis() - created >= ttl.toMillis();
+		}
+
+		/**
+		 * @param needed last day of events needed
+		 * @return true, if the events were extracted up to the given day
+		 */
+		boolean covers(LocalDate needed) {
+			return !until.isBefore(needed);
+		}
+
+		/**
+		 * @return the entity or collection tag or the synchronization token
+		 */
+		String getTag() {
+			return tag;
+		}
+
+		/**
+		 * @return true, if the tag is a synchronization token
+		 */
+		boolean isSync() {
+			return sync;
+		}
+
+		/**
+		 * @return the resources of a collection
+		 */
+		Map<String, Resource> getResources() {
+			return resources;
+		}
+
+		/**
+		 * @return the events
+		 */
+		List<VEvent> getEvents() {
+			return events;
+		}
+
+		/**
+		 * Get the index of the events, build it on first use.
+		 *
+		 * @return index of the events
+		 */
+		synchronized EventIndex getIndex() {
+			if (index == null) {
+				index = new EventIndex(events, CalendarMailConfiguration.INSTANCE.getEventcache().getHorizon());
+			}
+			return index;
+		}
+
+		/**
+		 * @return estimated size of the entry
+		 */
+		long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return time the entry was read
+		 */
+		long getCreated() {
+			return created;
+		}
+
+		/**
+		 * @return last day the events were extracted for
+		 */
+		LocalDate getUntil() {
+			return until;
+		}
+
+		/**
+		 * @return true, if the entry was restored from a snapshot and is not
+		 * revalidated yet
+		 */
+		boolean isRestored() {
+			return restored;
+		}
+	}
+
+	@com.typesafe.config.Optional
+	private ConfigMemorySize max_size = ConfigMemorySize.ofBytes(64L * 1024 * 1024);
+	@com.typesafe.config.Optional
+	private String snapshot_file = "";
+	@com.typesafe.config.Optional
+	private int horizon_days = 7;
+
+	/**
+	 * cached entries in access order
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	/**
+	 * estimated size of all cached entries
+	 */
+	private long size = 0;
+	/**
+	 * running revalidations of restored entries
+	 */
+	private final Map<String, CompletableFuture<Void>> revalidations = new HashMap<>();
+	/**
+	 * locks of the entries held while they are read
+	 */
+	private final Map<String, Lock> readings = new ConcurrentHashMap<>();
+
+	/**
+	 * Get the cached entry of a calendar.
+	 *
+	 * Expired entries are returned as well; they are used to revalidate the
+	 * events at the server.
+	 *
+	 * @param uri address of the calendar
+	 * @return cached entry or null
+	 */
+	public synchronized Entry get(String uri) {
+		return entries.get(uri);
+	}
+
+	/**
+	 * Store the entry of a calendar.
+	 *
+	 * @param uri address of the calendar
+	 * @param entry entry to be cached
+	 */
+	public synchronized void put(String uri, Entry entry) {
+		remove(uri);
+		if (entry.size > getMax_size().toBytes()) {
+			logger.info("Events of " + uri + " exceed the cache size - not cached");
+			return;
+		}
+		entries.put(uri, entry);
+		size += entry.size;
+		evict();
+	}
+
+	/**
+	 * Remove the entry of a calendar.
+	 *
+	 * @param uri address of the calendar
+	 */
+	public synchronized void remove(String uri) {
+		Entry entry = entries.remove(uri);
+		if (entry != null) {
+			size -= entry.size;
+		}
+	}
+
+	/**
+	 * Lock the entry of a calendar while it is read.
+	 *
+	 * Concurrent readers of the entry wait until the first has put the read
+	 * entry, so the calendar is read only once.
+	 *
+	 * @param uri address of the calendar
+	 * @return the held lock, to be unlocked after the reading
+	 * @throws InterruptedIOException if the thread is interrupted while
+	 * waiting
+	 */
+	public Lock lock(String uri) throws InterruptedIOException {
+		Lock lock = readings.computeIfAbsent(uri, k -> new ReentrantLock());
+		try {
+			lock.lockInterruptibly();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Waiting for reading of " + uri + " interrupted");
+		}
+		return lock;
+	}
+
+	/**
+	 * Get the period recurring events are expanded for.
+	 *
+	 * It starts today and ends the given number of days after the period
+	 * needed by the reminders.
+	 *
+	 * @return period of the expanded occurrences
+	 */
+	public Period getHorizon() {
+		LocalDate today = LocalDate.now();
+		LocalDate end = today.plusDays(CalendarMailConfiguration.INSTANCE.getMaxDaysInAdvance()
+						+ getHorizon_days() + 1);
+		ZoneId zone = ZoneId.systemDefault();
+		return new Period(new DateTime(Date.from(today.atStartOfDay(zone).toInstant())),
+						new DateTime(Date.from(end.atStartOfDay(zone).toInstant())));
+	}
+
+	/**
+	 * Revalidate an entry at the server in the background.
+	 *
+	 * Only one revalidation of an entry is running at the same time; the
+	 * result replaces the cached entry.
+	 *
+	 * @param uri address of the calendar
+	 * @param reading reading of the calendar
+	 */
+	public void revalidate(String uri, Callable<Entry> reading) {
+		CompletableFuture<Void> future;
+		synchronized (revalidations) {
+			if (revalidations.containsKey(uri)) {
+				return;
+			}
+			future = CalendarMailConfiguration.INSTANCE.getFetch().read(() -> {
+				try {
+					put(uri, reading.call());
+					logger.debug("Revalidated cached events of " + uri);
+				} catch (Exception ex) {
+					logger.warn("Revalidation of " + uri + " failed: " + ex.getLocalizedMessage());
+				}
+				return null;
+			});
+			revalidations.put(uri, future);
+		}
+		future.whenComplete((result, ex) -> {
+			synchronized (revalidations) {
+				revalidations.remove(uri, future);
+			}
+		});
+	}
+
+	/**
+	 * Wait for the running revalidations to finish.
+	 *
+	 * @param timeout maximum time to wait
+	 */
+	public void awaitRevalidations(Duration timeout) {
+		CompletableFuture<?>[] running;
+		synchronized (revalidations) {
+			running = revalidations.values().toArray(new CompletableFuture<?>[0]);
+		}
+		try {
+			CompletableFuture.allOf(running).get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException | ExecutionException | TimeoutException ex) {
+			logger.warn("Revalidation of cached events not finished: " + ex.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Restore the entries of the snapshot file, if configured.
+	 */
+	public void restore() {
+		if (getSnapshot_file().isEmpty()) {
+			return;
+		}
+		Path file = Paths.get(getSnapshot_file());
+		if (!Files.exists(file)) {
+			logger.info("No event snapshot " + file + " found");
+			return;
+		}
+		try {
+			Map<String, Entry> restored = EventSnapshot.read(file);
+			restored.forEach(this::put);
+			logger.info("Restored events of " + restored.size() + " calendars from " + file);
+		} catch (IOException ex) {
+			logger.warn("Unable to restore event snapshot: " + ex.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Write the entries to the snapshot file, if configured.
+	 */
+	public void save() {
+		if (getSnapshot_file().isEmpty()) {
+			return;
+		}
+		Map<String, Entry> current;
+		synchronized (this) {
+			current = new LinkedHashMap<>(entries);
+		}
+		try {
+			EventSnapshot.write(Paths.get(getSnapshot_file()), current);
+		} catch (IOException ex) {
+			logger.warn("Unable to write event snapshot: " + ex.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Evict least recently used entries until the memory budget is kept.
+	 */
+	protected void evict() {
+		Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+		while ((size > getMax_size().toBytes()) && iter.hasNext()) {
+			Map.Entry<String, Entry> eldest = iter.next();
+			logger.debug("Evicting cached events of " + eldest.getKey());
+			size -= eldest.getValue().size;
+			iter.remove();
+		}
+	}
+
+	/**
+	 * @return the max_size
+	 */
+	public ConfigMemorySize getMax_size() {
+		return max_size;
+	}
+
+	/**
+	 * @param max_size the max_size to set
+	 */
+	public void setMax_size(ConfigMemorySize max_size) {
+		this.max_size = max_size;
+	}
+
+	/**
+	 * @return the snapshot_file
+	 */
+	public String getSnapshot_file() {
+		return snapshot_file;
+	}
+
+	/**
+	 * @param snapshot_file the snapshot_file to set
+	 */
+	public void setSnapshot_file(String snapshot_file) {
+		this.snapshot_file = snapshot_file;
+	}
+
+	/**
+	 * @return the horizon_days
+	 */
+	public int getHorizon_days() {
+		return horizon_days;
+	}
+
+	/**
+	 * @param horizon_days the horizon_days to set
+	 */
+	public void setHorizon_days(int horizon_days) {
+		this.horizon_days = horizon_days;
+	}
+
+}
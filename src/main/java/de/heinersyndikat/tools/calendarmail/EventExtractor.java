@@ -0,0 +1,438 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import net.fortuna.ical4j.data.CalendarParser;
+import net.fortuna.ical4j.data.CalendarParserFactory;
+import net.fortuna.ical4j.data.ContentHandler;
+import net.fortuna.ical4j.data.ParserException;
+import net.fortuna.ical4j.data.UnfoldingReader;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.Dur;
+import net.fortuna.ical4j.model.Escapable;
+import net.fortuna.ical4j.model.Parameter;
+import net.fortuna.ical4j.model.ParameterFactoryRegistry;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.PropertyFactoryRegistry;
+import net.fortuna.ical4j.model.TimeZone;
+import net.fortuna.ical4j.model.TimeZoneRegistry;
+import net.fortuna.ical4j.model.TimeZoneRegistryFactory;
+import net.fortuna.ical4j.model.component.Daylight;
+import net.fortuna.ical4j.model.component.Observance;
+import net.fortuna.ical4j.model.component.Standard;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.component.VTimeZone;
+import net.fortuna.ical4j.model.property.DateListProperty;
+import net.fortuna.ical4j.model.property.DateProperty;
+import net.fortuna.ical4j.util.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streaming extraction of the events of an iCal file.
+ *
+ * In contrast to the CalendarBuilder no complete calendar is built. The
+ * properties of each event are collected as plain strings; events not
+ * overlapping the given period are discarded without creating their
+ * properties. Only the properties needed for filtering and output of the
+ * events are kept.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class EventExtractor implements ContentHandler {
+
+	/**
+	 * Logger instance
+	 */
+	private static transient final Logger logger
+					= LoggerFactory.getLogger(Thread.currentThread().getStackTrace()[1].getClassName());
+
+	/**
+	 * properties of events to be kept
+	 */
+	protected static final Set<String> KEPT_PROPERTIES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+					Property.UID, Property.DTSTART, Property.DTEND, Property.DURATION,
+					Property.SUMMARY, Property.LOCATION, Property.RRULE, Property.RDATE,
+					Property.EXDATE, Property.EXRULE, Property.RECURRENCE_ID)));
+
+	/**
+	 * Property of an event as read from the iCal file.
+	 */
+	protected static class RawProperty {
+
+		private final String name;
+		private final List<String[]> parameters = new ArrayList<>(1);
+		private String value = "";
+
+		RawProperty(String name) {
+			this.name = name;
+		}
+
+		RawProperty(String name, String value) {
+			this.name = name;
+			this.value = value;
+		}
+
+		/**
+		 * @param name name of the parameter
+		 * @param value value of the parameter
+		 */
+		void addParameter(String name, String value) {
+			parameters.add(new String[]{name, value});
+		}
+	}
+
+	private final PropertyFactoryRegistry propertyFactory = new PropertyFactoryRegistry();
+	private final ParameterFactoryRegistry parameterFactory = new ParameterFactoryRegistry();
+	private final TimeZoneRegistry registry = TimeZoneRegistryFactory.getInstance().createRegistry();
+	private final LocalDate from;
+	private final LocalDate until;
+
+	/**
+	 * names of the currently open components
+	 */
+	private final LinkedList<String> open = new LinkedList<>();
+	/**
+	 * properties of the current event
+	 */
+	private List<RawProperty> event = null;
+	private RawProperty raw = null;
+	/**
+	 * current time zone definition and its current observance
+	 */
+	private VTimeZone timezone = null;
+	private Observance observance = null;
+	private Property property = null;
+	/**
+	 * events overlapping the period; built at the end of the calendar, when
+	 * all time zone definitions are known
+	 */
+	private final List<List<RawProperty>> candidates = new ArrayList<>();
+	private final List<VEvent> events = new ArrayList<>();
+	private int rejected = 0;
+
+	/**
+	 * Initialization constructor.
+	 *
+	 * @param from first day of the period of interest
+	 * @param until last day of the period of interest
+	 */
+	public EventExtractor(LocalDate from, LocalDate until) {
+		this.from = from.minusDays(1);
+		this.until = until.plusDays(1);
+	}
+
+	/**
+	 * Extract the events from an iCal stream.
+	 *
+	 * @param is stream of iCal data
+	 * @return events overlapping the period
+	 * @throws IOException
+	 * @throws ParserException
+	 */
+	public List<VEvent> extract(InputStream is) throws IOException, ParserException {
+		return extract(new InputStreamReader(is, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Extract the events from iCal data.
+	 *
+	 * @param reader reader of iCal data
+	 * @return events overlapping the period
+	 * @throws IOException
+	 * @throws ParserException
+	 */
+	public List<VEvent> extract(Reader reader) throws IOException, ParserException {
+		CalendarParser parser = CalendarParserFactory.getInstance().createParser();
+		parser.parse(new UnfoldingReader(reader), this);
+		logger.debug("Extracted " + events.size() + " events, rejected " + rejected);
+		return events;
+	}
+
+	/**
+	 * @return number of events discarded as outside the period
+	 */
+	public int getRejected() {
+		return rejected;
+	}
+
+	@Override
+	public void startCalendar() {
+		open.clear();
+	}
+
+	@Override
+	public void endCalendar() {
+		candidates.stream().map(this::buildEvent)
+						.filter(ev -> ev != null)
+						.forEach(events::add);
+		candidates.clear();
+	}
+
+	@Override
+	public void startComponent(String name) {
+		name = name.toUpperCase();
+		if (Component.VEVENT.equals(name) && (open.size() == 0)) {
+			event = new ArrayList<>();
+		} else if (Component.VTIMEZONE.equals(name)) {
+			// created directly, the shared ComponentFactoryImpl is not thread-safe
+			timezone = new VTimeZone();
+		} else if ((timezone != null) && Observance.STANDARD.equals(name)) {
+			observance = new Standard();
+		} else if ((timezone != null) && Observance.DAYLIGHT.equals(name)) {
+			observance = new Daylight();
+		}
+		open.push(name);
+	}
+
+	@Override
+	public void endComponent(String name) {
+		name = name.toUpperCase();
+		open.pop();
+		if (Component.VEVENT.equals(name) && (event != null) && open.isEmpty()) {
+			if (overlaps(event)) {
+				candidates.add(event);
+			} else {
+				rejected++;
+			}
+			event = null;
+		} else if (Component.VTIMEZONE.equals(name) && (timezone != null)) {
+			try {
+				registry.register(new TimeZone(timezone));
+			} catch (RuntimeException ex) {
+				logger.warn("Ignoring invalid time zone definition: " + ex.getLocalizedMessage());
+			}
+			timezone = null;
+		} else if (observance != null) {
+			timezone.getObservances().add(observance);
+			observance = null;
+		}
+	}
+
+	@Override
+	public void startProperty(String name) {
+		String upper = name.toUpperCase();
+		if ((event != null) && (open.size() == 1)) {
+			raw = KEPT_PROPERTIES.contains(upper) ? new RawProperty(upper) : null;
+		} else if (timezone != null) {
+			property = propertyFactory.createProperty(upper);
+		}
+	}
+
+	@Override
+	public void propertyValue(String value) throws URISyntaxException, ParseException, IOException {
+		if (raw != null) {
+			raw.value = value;
+		} else if (property != null) {
+			setValue(property, value);
+		}
+	}
+
+	@Override
+	public void endProperty(String name) {
+		if (raw != null) {
+			event.add(raw);
+			raw = null;
+		} else if (property != null) {
+			if (observance != null) {
+				observance.getProperties().add(property);
+			} else {
+				timezone.getProperties().add(property);
+			}
+			property = null;
+		}
+	}
+
+	@Override
+	public void parameter(String name, String value) throws URISyntaxException {
+		if (raw != null) {
+			raw.addParameter(name.toUpperCase(), value);
+		} else if (property != null) {
+			property.getParameters().add(parameterFactory.createParameter(name.toUpperCase(),
+							Strings.escapeNewline(value)));
+		}
+	}
+
+	/**
+	 * Check by the raw values, if an event may overlap the period.
+	 *
+	 * Recurring events and changed occurrences are always kept. The check
+	 * ignores time zones; therefore the period is extended by a day.
+	 *
+	 * @param properties properties of the event
+	 * @return false, if the event is outside the period
+	 */
+	protected boolean overlaps(List<RawProperty> properties) {
+		String start_value = null;
+		String end_value = null;
+		String duration_value = null;
+		for (RawProperty prop : properties) {
+			switch (prop.name) {
+				case Property.RRULE:
+					if (!endsBefore(prop.value)) {
+						return true;
+					}
+					break;
+				case Property.RDATE:
+				case Property.RECURRENCE_ID:
+					return true;
+				case Property.DTSTART:
+					start_value = prop.value;
+					break;
+				case Property.DTEND:
+					end_value = prop.value;
+					break;
+				case Property.DURATION:
+					duration_value = prop.value;
+					break;
+				default:
+					break;
+			}
+		}
+		LocalDate start = (start_value != null) ? parseDate(start_value) : null;
+		if (start == null) {
+			return true;
+		}
+		LocalDate end = start;
+		if (end_value != null) {
+			end = parseDate(end_value);
+		} else if (duration_value != null) {
+			try {
+				Dur dur = new Dur(duration_value);
+				end = start.plusDays(dur.getWeeks() * 7 + dur.getDays() + 1);
+			} catch (IllegalArgumentException ex) {
+				return true;
+			}
+		}
+		if (end == null) {
+			return true;
+		}
+		return !end.isBefore(from) && !start.isAfter(until);
+	}
+
+	/**
+	 * Check, if a recurrence rule ends before the period.
+	 *
+	 * @param rule recurrence rule
+	 * @return true, if the rule has an UNTIL part before the period
+	 */
+	protected boolean endsBefore(String rule) {
+		for (String part : rule.split(";")) {
+			if (part.startsWith("UNTIL=")) {
+				LocalDate date = parseDate(part.substring(6));
+				return (date != null) && date.isBefore(from);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Parse the date part of an iCal date or date time value.
+	 *
+	 * @param value iCal value
+	 * @return parsed date or null
+	 */
+	protected static LocalDate parseDate(String value) {
+		if (value.length() < 8) {
+			return null;
+		}
+		try {
+			return LocalDate.parse(value.substring(0, 8), DateTimeFormatter.BASIC_ISO_DATE);
+		} catch (DateTimeParseException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Register the time zone definitions of iCal data for the creation of
+	 * events.
+	 *
+	 * @param reader reader of iCal data containing VTIMEZONE components
+	 * @throws IOException
+	 * @throws ParserException
+	 */
+	public void defineTimeZones(Reader reader) throws IOException, ParserException {
+		CalendarParser parser = CalendarParserFactory.getInstance().createParser();
+		parser.parse(new UnfoldingReader(reader), this);
+	}
+
+	/**
+	 * Create an event from its raw properties.
+	 *
+	 * @param properties properties of the event
+	 * @return created event or null, if it is invalid
+	 */
+	protected VEvent buildEvent(List<RawProperty> properties) {
+		VEvent vevent = new VEvent(false);
+		try {
+			for (RawProperty prop : properties) {
+				Property created = propertyFactory.createProperty(prop.name);
+				for (String[] param : prop.parameters) {
+					Parameter parameter = parameterFactory.createParameter(param[0],
+									Strings.escapeNewline(param[1]));
+					created.getParameters().add(parameter);
+					if (Parameter.TZID.equals(param[0])) {
+						setTimeZone(created, registry.getTimeZone(parameter.getValue()));
+					}
+				}
+				setValue(created, prop.value);
+				vevent.getProperties().add(created);
+			}
+			return vevent;
+		} catch (URISyntaxException | ParseException | IOException | IllegalArgumentException ex) {
+			logger.warn("Skipping invalid event: " + ex.getLocalizedMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Set the time zone of a date property before its value is set.
+	 *
+	 * @param property date property
+	 * @param tz time zone or null, if unknown
+	 */
+	protected static void setTimeZone(Property property, TimeZone tz) {
+		if (tz == null) {
+			return;
+		}
+		if (property instanceof DateProperty) {
+			((DateProperty) property).setTimeZone(tz);
+		} else if (property instanceof DateListProperty) {
+			((DateListProperty) property).setTimeZone(tz);
+		}
+	}
+
+	/**
+	 * Set the value of a property like the CalendarBuilder.
+	 *
+	 * @param property property to set
+	 * @param value value as read from the iCal data
+	 * @throws URISyntaxException
+	 * @throws ParseException
+	 * @throws IOException
+	 */
+	protected static void setValue(Property property, String value)
+					throws URISyntaxException, ParseException, IOException {
+		if (property instanceof Escapable) {
+			property.setValue(Strings.unescape(value));
+		} else {
+			property.setValue(value);
+		}
+	}
+
+}
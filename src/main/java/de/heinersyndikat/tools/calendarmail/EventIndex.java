@@ -0,0 +1,225 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import net.fortuna.ical4j.model.Period;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.property.DtEnd;
+import net.fortuna.ical4j.model.property.DtStart;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of the events of a calendar by their time.
+ *
+ * The events are sorted by their start; for each position the latest end
+ * of all events up to this position is kept. So the events overlapping a
+ * period are found by two binary searches and are returned in chronological
+ * order without sorting. The index is built once per reading of a calendar
+ * and shared by all reminders.
+ *
+ * Recurring events are expanded into their single occurrences within a
+ * horizon when the index is built. Excluded dates are omitted and
+ * occurrences changed by a separate event with a RECURRENCE-ID are
+ * replaced by this event. So every indexed event carries the actual time of
+ * its occurrence.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class EventIndex {
+
+	/**
+	 * Logger instance
+	 */
+	private static transient final Logger logger
+					= LoggerFactory.getLogger(Thread.currentThread().getStackTrace()[1].getClassName());
+
+	/**
+	 * index without events
+	 */
+	public static final EventIndex EMPTY = new EventIndex(Collections.emptyList(), null);
+	/**
+	 * properties of a recurring event not taken over by its occurrences
+	 */
+	protected static final Set<String> RECURRENCE_PROPERTIES = Collections.unmodifiableSet(new HashSet<>(
+					Arrays.asList(Property.DTSTART, Property.DTEND, Property.DURATION, Property.RRULE,
+									Property.RDATE, Property.EXDATE, Property.EXRULE)));
+
+	private final VEvent[] events;
+	private final long[] starts;
+	private final long[] ends;
+	/**
+	 * latest end of the events up to each position
+	 */
+	private final long[] max_ends;
+	private final int recurring;
+
+	/**
+	 * Build the index of the given events.
+	 *
+	 * @param all events to be indexed
+	 * @param horizon period recurring events are expanded for
+	 */
+	public EventIndex(Collection<VEvent> all, Period horizon) {
+		List<VEvent> timed = new ArrayList<>(all.size());
+		List<VEvent> masters = new ArrayList<>();
+		// start times of changed occurrences by the UID of their recurring event
+		Map<String, Set<Long>> changed = new HashMap<>();
+		for (VEvent event : all) {
+			if (event.getStartDate() == null) {
+				continue;
+			}
+			if ((event.getProperty(Property.RRULE) != null) || (event.getProperty(Property.RDATE) != null)) {
+				masters.add(event);
+				continue;
+			}
+			if ((event.getRecurrenceId() != null) && (event.getUid() != null)) {
+				changed.computeIfAbsent(event.getUid().getValue(), uid -> new HashSet<>())
+								.add(event.getRecurrenceId().getDate().getTime());
+			}
+			timed.add(event);
+		}
+		for (VEvent master : masters) {
+			Set<Long> replaced = (master.getUid() != null)
+							? changed.getOrDefault(master.getUid().getValue(), Collections.emptySet())
+							: Collections.emptySet();
+			timed.addAll(expand(master, horizon, replaced));
+		}
+		recurring = masters.size();
+		timed.sort(new EventComparator());
+		events = timed.toArray(new VEvent[timed.size()]);
+		starts = new long[events.length];
+		ends = new long[events.length];
+		max_ends = new long[events.length];
+		long max_end = Long.MIN_VALUE;
+		for (int i = 0; i < events.length; i++) {
+			starts[i] = start(events[i]);
+			ends[i] = end(events[i], starts[i]);
+			max_end = Math.max(max_end, ends[i]);
+			max_ends[i] = max_end;
+		}
+		logger.debug("Indexed " + events.length + " events, " + recurring + " recurring");
+	}
+
+	/**
+	 * Create the occurrences of a recurring event within the horizon.
+	 *
+	 * @param master recurring event
+	 * @param horizon period of the occurrences
+	 * @param replaced start times of occurrences replaced by changed events
+	 * @return occurrences of the event
+	 */
+	protected static List<VEvent> expand(VEvent master, Period horizon, Set<Long> replaced) {
+		List<VEvent> occurrences = new ArrayList<>();
+		if (horizon == null) {
+			return occurrences;
+		}
+		try {
+			for (Period period : master.calculateRecurrenceSet(horizon)) {
+				if (!replaced.contains(period.getStart().getTime())) {
+					occurrences.add(occurrence(master, period));
+				}
+			}
+		} catch (RuntimeException ex) {
+			logger.warn("Unable to expand recurring event " + master.getSummary() + ": "
+							+ ex.getLocalizedMessage());
+		}
+		return occurrences;
+	}
+
+	/**
+	 * Create a single occurrence of a recurring event.
+	 *
+	 * @param master recurring event
+	 * @param period time of the occurrence
+	 * @return event of the occurrence
+	 */
+	protected static VEvent occurrence(VEvent master, Period period) {
+		VEvent occurrence = new VEvent(false);
+		for (Property property : master.getProperties()) {
+			if (!RECURRENCE_PROPERTIES.contains(property.getName())) {
+				occurrence.getProperties().add(property);
+			}
+		}
+		occurrence.getProperties().add(new DtStart(period.getStart()));
+		occurrence.getProperties().add(new DtEnd(period.getEnd()));
+		return occurrence;
+	}
+
+	/**
+	 * @param event indexed event
+	 * @return start of the event in milliseconds
+	 */
+	protected static long start(VEvent event) {
+		return event.getStartDate().getDate().getTime();
+	}
+
+	/**
+	 * @param event indexed event
+	 * @param start start of the event in milliseconds
+	 * @return end of the event in milliseconds
+	 */
+	protected static long end(VEvent event, long start) {
+		DtEnd end = event.getEndDate(true);
+		return (end != null) ? Math.max(start, end.getDate().getTime()) : start;
+	}
+
+	/**
+	 * Find the events overlapping the given period.
+	 *
+	 * @param period period of interest
+	 * @return overlapping events sorted by their start
+	 */
+	public List<VEvent> query(Period period) {
+		long from = period.getStart().getTime();
+		long to = period.getEnd().getTime();
+		// skip all events ended before the period
+		int first = lowerBound(max_ends, from);
+		// events starting at the end of the period are excluded, unless it is empty
+		int last = lowerBound(starts, (to > from) ? to : from + 1);
+		List<VEvent> found = new ArrayList<>();
+		for (int i = first; i < last; i++) {
+			if ((ends[i] > from) || (starts[i] >= from)) {
+				found.add(events[i]);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Binary search in a sorted array.
+	 *
+	 * @param sorted array sorted in ascending order
+	 * @param key value to search
+	 * @return first position of a value not less than the key
+	 */
+	protected static int lowerBound(long[] sorted, long key) {
+		int low = 0;
+		int high = sorted.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (sorted[mid] < key) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return number of indexed events and occurrences
+	 */
+	public int size() {
+		return events.length;
+	}
+
+}
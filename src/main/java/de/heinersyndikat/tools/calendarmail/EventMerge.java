@@ -0,0 +1,86 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import net.fortuna.ical4j.model.component.VEvent;
+
+/**
+ * Chronological merge of sorted event lists.
+ *
+ * The next event is taken from the list with the earliest pending event, so
+ * the lists are combined without sorting all their events again. Events of
+ * the same time keep the order of their lists.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class EventMerge implements Iterator<VEvent> {
+
+	/**
+	 * Position within one of the merged lists.
+	 */
+	protected static class Cursor {
+
+		private final Iterator<VEvent> events;
+		private final int order;
+		private VEvent current;
+
+		Cursor(Iterator<VEvent> events, int order) {
+			this.events = events;
+			this.order = order;
+			this.current = events.next();
+		}
+
+		/**
+		 * @return true, if the cursor moved to the next event
+		 */
+		boolean advance() {
+			if (!events.hasNext()) {
+				return false;
+			}
+			current = events.next();
+			return true;
+		}
+	}
+
+	private final Comparator<VEvent> comparator = new EventComparator();
+	private final PriorityQueue<Cursor> pending;
+
+	/**
+	 * Initialization constructor.
+	 *
+	 * @param lists event lists, each sorted chronologically
+	 */
+	public EventMerge(List<List<VEvent>> lists) {
+		pending = new PriorityQueue<>(Math.max(1, lists.size()), (c1, c2) -> {
+			int result = comparator.compare(c1.current, c2.current);
+			return (result != 0) ? result : Integer.compare(c1.order, c2.order);
+		});
+		for (int i = 0; i < lists.size(); i++) {
+			if (!lists.get(i).isEmpty()) {
+				pending.add(new Cursor(lists.get(i).iterator(), i));
+			}
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return !pending.isEmpty();
+	}
+
+	@Override
+	public VEvent next() {
+		Cursor cursor = pending.poll();
+		if (cursor == null) {
+			throw new NoSuchElementException();
+		}
+		VEvent event = cursor.current;
+		if (cursor.advance()) {
+			pending.add(cursor);
+		}
+		return event;
+	}
+
+}
@@ -0,0 +1,191 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.property.DtEnd;
+import net.fortuna.ical4j.model.property.DtStart;
+import net.fortuna.ical4j.model.property.Location;
+
+/**
+ * Textual representation of events.
+ *
+ * The events are written into a buffer reused for each rendering of the
+ * same thread. Times are shown in the display time zone of the
+ * configuration; the formatted days are cached, so only the time of day is
+ * formatted for each event.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class EventRenderer {
+
+	/**
+	 * renderer of each thread
+	 */
+	private static final ThreadLocal<EventRenderer> renderers = new ThreadLocal<>();
+	/**
+	 * maximum number of cached days
+	 */
+	protected static final int MAX_DAYS = 1024;
+	protected static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+	private final ZoneId zone;
+	private final ZoneRules rules;
+	private final StringBuilder buffer = new StringBuilder(4096);
+	/**
+	 * formatted days by their epoch day
+	 */
+	private final Map<Long, String> days = new HashMap<>();
+	private long last_day = Long.MIN_VALUE;
+	private String last_text = null;
+
+	/**
+	 * Initialization constructor.
+	 *
+	 * @param zone time zone to display the events in
+	 */
+	public EventRenderer(ZoneId zone) {
+		this.zone = zone;
+		this.rules = zone.getRules();
+	}
+
+	/**
+	 * Get the renderer of the current thread for the configured time zone.
+	 *
+	 * @return renderer of the current thread
+	 */
+	public static EventRenderer get() {
+		return get(CalendarMailConfiguration.INSTANCE.getTimezone());
+	}
+
+	/**
+	 * Get the renderer of the current thread for a time zone.
+	 *
+	 * @param zone time zone to display the events in
+	 * @return renderer of the current thread
+	 */
+	public static EventRenderer get(ZoneId zone) {
+		EventRenderer renderer = renderers.get();
+		if ((renderer == null) || !renderer.zone.equals(zone)) {
+			renderer = new EventRenderer(zone);
+			renderers.set(renderer);
+		}
+		return renderer;
+	}
+
+	/**
+	 * Get the emptied buffer of this renderer.
+	 *
+	 * The buffer is reused by the next rendering of this renderer, so its
+	 * content has to be copied before.
+	 *
+	 * @return empty buffer
+	 */
+	public StringBuilder buffer() {
+		buffer.setLength(0);
+		return buffer;
+	}
+
+	/**
+	 * Append the representation of events separated by empty lines.
+	 *
+	 * @param events events to render
+	 * @param out buffer to append to
+	 */
+	public void render(Collection<? extends VEvent> events, StringBuilder out) {
+		boolean first = true;
+		for (VEvent event : events) {
+			if (!first) {
+				out.append('\n');
+			}
+			render(event, out);
+			first = false;
+		}
+	}
+
+	/**
+	 * Append the representation of an event.
+	 *
+	 * @param event event to render
+	 * @param out buffer to append to
+	 */
+	public void render(VEvent event, StringBuilder out) {
+		// Event time
+		DtStart start = event.getStartDate();
+		if (start != null) {
+			appendTime(start.getDate().getTime(), out);
+			DtEnd ending = event.getEndDate(true);
+			if (ending != null) {
+				out.append(" - ");
+				appendTime(ending.getDate().getTime(), out);
+			}
+			out.append('\n');
+		}
+		// event title
+		Property summary = event.getProperty(Property.SUMMARY);
+		if (summary != null) {
+			out.append(summary.getValue());
+		}
+		out.append('\n');
+		// event location
+		Location loc = event.getLocation();
+		if (loc != null) {
+			out.append("Ort: ").append(loc.getValue()).append('\n');
+		}
+	}
+
+	/**
+	 * Append a point in time in the format "dd.MM.yyyy HH:mm".
+	 *
+	 * @param millis point in time in milliseconds since the epoch
+	 * @param out buffer to append to
+	 */
+	protected void appendTime(long millis, StringBuilder out) {
+		long seconds = Math.floorDiv(millis, 1000L);
+		long local = seconds + rules.getOffset(Instant.ofEpochSecond(seconds)).getTotalSeconds();
+		long day = Math.floorDiv(local, SECONDS_PER_DAY);
+		int minutes = (int) (Math.floorMod(local, SECONDS_PER_DAY) / 60);
+		out.append(formatDay(day)).append(' ');
+		appendTwoDigits(minutes / 60, out);
+		out.append(':');
+		appendTwoDigits(minutes % 60, out);
+	}
+
+	/**
+	 * Get the formatted day from the cache or format it.
+	 *
+	 * @param day epoch day
+	 * @return day in the format "dd.MM.yyyy"
+	 */
+	protected String formatDay(long day) {
+		if (day == last_day) {
+			return last_text;
+		}
+		String text = days.get(day);
+		if (text == null) {
+			if (days.size() >= MAX_DAYS) {
+				days.clear();
+			}
+			text = LocalDate.ofEpochDay(day).format(Reminder.DATE_FORMAT);
+			days.put(day, text);
+		}
+		last_day = day;
+		last_text = text;
+		return text;
+	}
+
+	/**
+	 * @param value number between 0 and 99
+	 * @param out buffer to append to
+	 */
+	protected static void appendTwoDigits(int value, StringBuilder out) {
+		out.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+	}
+
+}
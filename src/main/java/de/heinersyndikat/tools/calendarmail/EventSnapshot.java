@@ -0,0 +1,312 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import net.fortuna.ical4j.data.ParserException;
+import net.fortuna.ical4j.model.Escapable;
+import net.fortuna.ical4j.model.Parameter;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.TimeZone;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.component.VTimeZone;
+import net.fortuna.ical4j.model.property.DateListProperty;
+import net.fortuna.ical4j.model.property.DateProperty;
+import net.fortuna.ical4j.util.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binary snapshot of the event cache on disk.
+ *
+ * The snapshot starts with a magic number and a format version, followed by
+ * the definitions of all time zones used by the events and the cache
+ * entries. Of each event only the kept properties are stored as strings, so
+ * the events are created without parsing iCal data. Snapshots of another
+ * format version are ignored.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class EventSnapshot {
+
+	/**
+	 * Logger instance
+	 */
+	private static transient final Logger logger
+					= LoggerFactory.getLogger(Thread.currentThread().getStackTrace()[1].getClassName());
+
+	/**
+	 * "CMES" - CalendarMail event snapshot
+	 */
+	protected static final int MAGIC = 0x434d4553;
+	/**
+	 * version of the snapshot format
+	 */
+	protected static final int VERSION = 2;
+	protected static final byte KIND_FILE = 0;
+	protected static final byte KIND_COLLECTION = 1;
+
+	/**
+	 * Write the cache entries to a snapshot file.
+	 *
+	 * The file is replaced atomically, so an interrupted writing does not
+	 * destroy the last snapshot.
+	 *
+	 * @param file snapshot file
+	 * @param entries cache entries by their key
+	 * @throws IOException
+	 */
+	public static void write(Path file, Map<String, EventCache.Entry> entries) throws IOException {
+		Path parent = file.toAbsolutePath().getParent();
+		Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+							new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				writeString(out, timeZones(entries));
+				out.writeInt(entries.size());
+				for (Map.Entry<String, EventCache.Entry> cached : entries.entrySet()) {
+					writeEntry(out, cached.getKey(), cached.getValue());
+				}
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		logger.debug("Wrote snapshot of " + entries.size() + " calendars to " + file);
+	}
+
+	/**
+	 * Read the cache entries of a snapshot file.
+	 *
+	 * @param file snapshot file
+	 * @return restored cache entries by their key
+	 * @throws IOException if the file is missing, invalid or of another
+	 * version
+	 */
+	public static Map<String, EventCache.Entry> read(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if ((buffer.remaining() < 8) || (buffer.getInt() != MAGIC)) {
+				throw new IOException("No event snapshot: " + file);
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported snapshot version " + version + ": " + file);
+			}
+			EventExtractor extractor = new EventExtractor(LocalDate.now(), LocalDate.now());
+			extractor.defineTimeZones(new StringReader(readString(buffer)));
+			int count = buffer.getInt();
+			Map<String, EventCache.Entry> entries = new LinkedHashMap<>();
+			for (int i = 0; i < count; i++) {
+				String key = readString(buffer);
+				entries.put(key, readEntry(buffer, extractor));
+			}
+			logger.debug("Read snapshot of " + entries.size() + " calendars from " + file);
+			return entries;
+		} catch (BufferUnderflowException | IllegalArgumentException ex) {
+			throw new IOException("Truncated event snapshot: " + file, ex);
+		} catch (ParserException ex) {
+			throw new IOException("Invalid time zones in event snapshot: " + file, ex);
+		}
+	}
+
+	/**
+	 * Collect the definitions of all time zones used by the events.
+	 *
+	 * @param entries cache entries
+	 * @return iCal calendar containing the time zone definitions
+	 */
+	protected static String timeZones(Map<String, EventCache.Entry> entries) {
+		Map<String, VTimeZone> zones = new LinkedHashMap<>();
+		entries.values().stream()
+						.flatMap(entry -> entry.getEvents().stream())
+						.flatMap(event -> event.getProperties().stream())
+						.forEach(property -> {
+							TimeZone tz = null;
+							if (property instanceof DateProperty) {
+								tz = ((DateProperty) property).getTimeZone();
+							} else if (property instanceof DateListProperty) {
+								tz = ((DateListProperty) property).getTimeZone();
+							}
+							if (tz != null) {
+								zones.putIfAbsent(tz.getID(), tz.getVTimeZone());
+							}
+						});
+		StringBuilder ical = new StringBuilder("BEGIN:VCALENDAR\r\n");
+		zones.values().forEach(ical::append);
+		return ical.append("END:VCALENDAR\r\n").toString();
+	}
+
+	/**
+	 * Write a single cache entry.
+	 *
+	 * @param out stream to write to
+	 * @param key key of the entry
+	 * @param entry cache entry
+	 * @throws IOException
+	 */
+	protected static void writeEntry(DataOutputStream out, String key, EventCache.Entry entry)
+					throws IOException {
+		writeString(out, key);
+		writeString(out, entry.getTag());
+		out.writeBoolean(entry.isSync());
+		out.writeLong(entry.getCreated());
+		if (entry.getResources().isEmpty() && !entry.isSync()) {
+			out.writeByte(KIND_FILE);
+			out.writeLong(entry.getUntil().toEpochDay());
+			out.writeLong(entry.getSize() / EventCache.HEAP_FACTOR);
+			writeEvents(out, entry.getEvents());
+		} else {
+			out.writeByte(KIND_COLLECTION);
+			out.writeInt(entry.getResources().size());
+			for (Map.Entry<String, EventCache.Resource> resource : entry.getResources().entrySet()) {
+				writeString(out, resource.getKey());
+				writeString(out, resource.getValue().getEtag());
+				out.writeLong(resource.getValue().getUntil().toEpochDay());
+				out.writeLong(resource.getValue().getBytes());
+				writeEvents(out, resource.getValue().getEvents());
+			}
+		}
+	}
+
+	/**
+	 * Read a single cache entry.
+	 *
+	 * @param buffer buffer to read from
+	 * @param extractor extractor knowing the time zones of the snapshot
+	 * @return restored cache entry
+	 */
+	protected static EventCache.Entry readEntry(ByteBuffer buffer, EventExtractor extractor) {
+		String tag = readString(buffer);
+		boolean sync = buffer.get() != 0;
+		long created = buffer.getLong();
+		EventCache.Entry entry;
+		if (buffer.get() == KIND_FILE) {
+			LocalDate until = LocalDate.ofEpochDay(buffer.getLong());
+			long bytes = buffer.getLong();
+			entry = new EventCache.Entry(tag, readEvents(buffer, extractor), bytes, until);
+		} else {
+			int count = buffer.getInt();
+			Map<String, EventCache.Resource> resources = new LinkedHashMap<>();
+			for (int i = 0; i < count; i++) {
+				String url = readString(buffer);
+				String etag = readString(buffer);
+				LocalDate until = LocalDate.ofEpochDay(buffer.getLong());
+				long bytes = buffer.getLong();
+				resources.put(url, new EventCache.Resource(etag, readEvents(buffer, extractor), bytes, until));
+			}
+			entry = new EventCache.Entry(tag, resources, sync);
+		}
+		return new EventCache.Entry(entry, created);
+	}
+
+	/**
+	 * Write the kept properties of events.
+	 *
+	 * @param out stream to write to
+	 * @param events events to write
+	 * @throws IOException
+	 */
+	protected static void writeEvents(DataOutputStream out, List<VEvent> events) throws IOException {
+		out.writeInt(events.size());
+		for (VEvent event : events) {
+			out.writeInt(event.getProperties().size());
+			for (Property property : event.getProperties()) {
+				writeString(out, property.getName());
+				out.writeInt(property.getParameters().size());
+				Iterator<Parameter> parameters = property.getParameters().iterator();
+				while (parameters.hasNext()) {
+					Parameter parameter = parameters.next();
+					writeString(out, parameter.getName());
+					writeString(out, parameter.getValue());
+				}
+				String value = property.getValue();
+				writeString(out, (property instanceof Escapable) ? Strings.escape(value) : value);
+			}
+		}
+	}
+
+	/**
+	 * Read events and create them by the extractor.
+	 *
+	 * @param buffer buffer to read from
+	 * @param extractor extractor knowing the time zones of the snapshot
+	 * @return restored events
+	 */
+	protected static List<VEvent> readEvents(ByteBuffer buffer, EventExtractor extractor) {
+		int count = buffer.getInt();
+		List<VEvent> events = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			int properties = buffer.getInt();
+			List<EventExtractor.RawProperty> raw = new ArrayList<>(properties);
+			for (int j = 0; j < properties; j++) {
+				String name = readString(buffer);
+				int parameters = buffer.getInt();
+				List<String[]> params = new ArrayList<>(parameters);
+				for (int k = 0; k < parameters; k++) {
+					params.add(new String[]{readString(buffer), readString(buffer)});
+				}
+				EventExtractor.RawProperty property = new EventExtractor.RawProperty(name, readString(buffer));
+				params.forEach(p -> property.addParameter(p[0], p[1]));
+				raw.add(property);
+			}
+			VEvent event = extractor.buildEvent(raw);
+			if (event != null) {
+				events.add(event);
+			}
+		}
+		return events;
+	}
+
+	/**
+	 * Write a string as length and UTF-8 bytes; null has the length -1.
+	 *
+	 * @param out stream to write to
+	 * @param value string to write or null
+	 * @throws IOException
+	 */
+	protected static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Read a string written by writeString.
+	 *
+	 * @param buffer buffer to read from
+	 * @return read string or null
+	 */
+	protected static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
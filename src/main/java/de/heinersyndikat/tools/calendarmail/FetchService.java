@@ -0,0 +1,250 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parallel download of calendar resources.
+ *
+ * The downloads are executed by a fixed number of threads. The number of
+ * simultaneous downloads from a single host is limited. The calendars
+ * themselves are read concurrently by separate threads, as they wait for
+ * the downloads of their resources.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class FetchService {
+
+	/**
+	 * Logger instance
+	 */
+	private static transient final Logger logger
+					= LoggerFactory.getLogger(Thread.currentThread().getStackTrace()[1].getClassName());
+
+	public static final String CONFIG_KEYWORD = "fetch";
+
+	@com.typesafe.config.Optional
+	private int threads = 8;
+	@com.typesafe.config.Optional
+	private int connections_per_host = 4;
+	@com.typesafe.config.Optional
+	private Duration coalesce_window = Duration.ofSeconds(1);
+
+	/**
+	 * threads executing the downloads
+	 */
+	private ExecutorService executor = null;
+	/**
+	 * threads reading the calendars
+	 */
+	private ExecutorService calendar_executor = null;
+	/**
+	 * available connections for each host
+	 */
+	private final Map<String, Semaphore> hosts = new ConcurrentHashMap<>();
+
+	/**
+	 * Get the executor, create it on first use.
+	 *
+	 * @return executor for downloads
+	 */
+	protected synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			AtomicInteger count = new AtomicInteger();
+			executor = Executors.newFixedThreadPool(getThreads(), r -> {
+				Thread thread = new Thread(r, "fetch-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+			logger.debug("Started " + getThreads() + " download threads");
+		}
+		return executor;
+	}
+
+	/**
+	 * Get the executor for reading calendars, create it on first use.
+	 *
+	 * @return executor for calendars
+	 */
+	protected synchronized ExecutorService getCalendarExecutor() {
+		if (calendar_executor == null) {
+			AtomicInteger count = new AtomicInteger();
+			calendar_executor = Executors.newCachedThreadPool(r -> {
+				Thread thread = new Thread(r, "calendar-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return calendar_executor;
+	}
+
+	/**
+	 * Read a calendar concurrently to the others.
+	 *
+	 * Cancelling the returned future interrupts the reading.
+	 *
+	 * @param <T> result type of the reading
+	 * @param task reading of the calendar
+	 * @return future result of the reading
+	 */
+	public <T> CompletableFuture<T> read(Supplier<T> task) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		Future<?> running = getCalendarExecutor().submit(() -> {
+			try {
+				result.complete(task.get());
+			} catch (Throwable ex) {
+				result.completeExceptionally(ex);
+			}
+		});
+		result.whenComplete((value, ex) -> {
+			if (result.isCancelled()) {
+				running.cancel(true);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Execute a download from the given host.
+	 *
+	 * Blocks until a connection to the host is available. A download
+	 * cancelled before it is started is skipped.
+	 *
+	 * @param <T> result type of the download
+	 * @param host host to download from
+	 * @param task download to execute
+	 * @return future result of the download, cancelled if the calling thread
+	 * is interrupted while waiting for a connection
+	 */
+	public <T> CompletableFuture<T> submit(String host, Supplier<T> task) {
+		Semaphore connections = hosts.computeIfAbsent(host,
+						h -> new Semaphore(Math.max(1, getConnections_per_host())));
+		CompletableFuture<T> result = new CompletableFuture<>();
+		try {
+			connections.acquire();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			result.cancel(false);
+			return result;
+		}
+		try {
+			getExecutor().execute(() -> {
+				try {
+					if (!result.isDone()) {
+						result.complete(task.get());
+					}
+				} catch (Throwable ex) {
+					result.completeExceptionally(ex);
+				} finally {
+					connections.release();
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			connections.release();
+			throw ex;
+		}
+		return result;
+	}
+
+	/**
+	 * Wait for the results of downloads.
+	 *
+	 * If the waiting thread is interrupted, the downloads not started yet
+	 * are cancelled.
+	 *
+	 * @param <K> key of the downloads
+	 * @param <T> result type of the downloads
+	 * @param pending future results of the downloads
+	 * @return results of the downloads in the same order
+	 * @throws InterruptedIOException if the waiting thread is interrupted
+	 */
+	public static <K, T> Map<K, T> awaitAll(Map<K, CompletableFuture<T>> pending)
+					throws InterruptedIOException {
+		Map<K, T> results = new LinkedHashMap<>();
+		try {
+			for (Map.Entry<K, CompletableFuture<T>> download : pending.entrySet()) {
+				results.put(download.getKey(), download.getValue().get());
+			}
+		} catch (InterruptedException | CancellationException ex) {
+			pending.values().forEach(download -> download.cancel(false));
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Downloads interrupted");
+		} catch (ExecutionException ex) {
+			throw new CompletionException(ex.getCause());
+		}
+		return results;
+	}
+
+	/**
+	 * Stop the download and calendar threads.
+	 */
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+		if (calendar_executor != null) {
+			calendar_executor.shutdown();
+			calendar_executor = null;
+		}
+	}
+
+	/**
+	 * @return the threads
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads the threads to set
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * @return the coalesce_window
+	 */
+	public Duration getCoalesce_window() {
+		return coalesce_window;
+	}
+
+	/**
+	 * @param coalesce_window the coalesce_window to set
+	 */
+	public void setCoalesce_window(Duration coalesce_window) {
+		this.coalesce_window = coalesce_window;
+	}
+
+	/**
+	 * @return the connections_per_host
+	 */
+	public int getConnections_per_host() {
+		return connections_per_host;
+	}
+
+	/**
+	 * @param connections_per_host the connections_per_host to set
+	 */
+	public void setConnections_per_host(int connections_per_host) {
+		this.connections_per_host = connections_per_host;
+	}
+
+}
@@ -0,0 +1,110 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.text.MessageFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.ResourceBundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiled texts of the reminder emails for a locale.
+ *
+ * The message formats are created once from the MessageBundle of the
+ * locale. The signature only depends on the application properties and is
+ * formatted in advance.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class MessageTemplates {
+
+	/**
+	 * Logger instance
+	 */
+	private static transient final Logger logger
+					= LoggerFactory.getLogger(Thread.currentThread().getStackTrace()[1].getClassName());
+
+	private final Locale locale;
+	private final MessageFormat subject;
+	private final MessageFormat intro;
+	private final String greeting;
+	private final String signature;
+
+	/**
+	 * Compile the texts of the given locale.
+	 *
+	 * @param locale locale of the texts
+	 * @param app_prop application properties for the signature
+	 */
+	public MessageTemplates(Locale locale, Properties app_prop) {
+		this.locale = locale;
+		// without fallback to the default locale, a missing language uses the base bundle
+		ResourceBundle message_bundle = ResourceBundle.getBundle("MessageBundle", locale,
+						ResourceBundle.Control.getNoFallbackControl(ResourceBundle.Control.FORMAT_DEFAULT));
+		subject = new MessageFormat(message_bundle.getString("email.subject"), locale);
+		intro = new MessageFormat(message_bundle.getString("email.body.intro"), locale);
+		greeting = message_bundle.getString("email.body.greeting");
+		// Create the email signature text
+		MessageFormat sigFormat = new MessageFormat(message_bundle.getString("email.body.signature"), locale);
+		Object[] sig_params = {app_prop.getProperty("application.name", "CalendarMail"),
+			app_prop.getProperty("application.version", ""),
+			app_prop.getProperty("application.url", ""),
+			app_prop.getProperty("application.vendorName", "Heinersyndikat e.V."),
+			app_prop.getProperty("application.vendorURL", "")};
+		signature = sigFormat.format(sig_params);
+		logger.debug("Compiled message templates for locale '" + locale + "'");
+	}
+
+	/**
+	 * Create the subject of a reminder email.
+	 *
+	 * @param name name of the reminder
+	 * @param date date of the reminder
+	 * @return subject text
+	 */
+	public String subject(String name, Date date) {
+		Object[] params = {name, date};
+		// message formats are not thread safe
+		synchronized (subject) {
+			return subject.format(params);
+		}
+	}
+
+	/**
+	 * Create the introduction of a reminder email.
+	 *
+	 * @param name name of the reminder
+	 * @param days_in_advance days of the reminder period
+	 * @param calendars names of the calendars
+	 * @return introduction text
+	 */
+	public String intro(String name, int days_in_advance, String calendars) {
+		Object[] params = {name, days_in_advance, calendars};
+		synchronized (intro) {
+			return intro.format(params);
+		}
+	}
+
+	/**
+	 * @return the locale
+	 */
+	public Locale getLocale() {
+		return locale;
+	}
+
+	/**
+	 * @return the greeting
+	 */
+	public String getGreeting() {
+		return greeting;
+	}
+
+	/**
+	 * @return the signature
+	 */
+	public String getSignature() {
+		return signature;
+	}
+
+}
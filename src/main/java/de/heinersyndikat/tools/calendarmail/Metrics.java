@@ -0,0 +1,416 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Metrics of the stages of reading calendars and sending reminders.
+ *
+ * Latencies are recorded in histograms and quantities in counters, each for
+ * a stage and optionally a label like the calendar or the reminder. All
+ * metrics are registered as MBeans in the domain of this package. If a file
+ * is configured, they are also written in the Prometheus text format in the
+ * configured interval, e.g. for the textfile collector of the node
+ * exporter.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class Metrics {
+
+	/**
+	 * Logger instance
+	 */
+	private static transient final Logger logger
+					= LoggerFactory.getLogger(Thread.currentThread().getStackTrace()[1].getClassName());
+
+	public static final String CONFIG_KEYWORD = "metrics";
+	protected static final String DOMAIN = "de.heinersyndikat.tools.calendarmail";
+	protected static final String PREFIX = "calendarmail_";
+	/**
+	 * upper bounds of the histogram buckets in milliseconds
+	 */
+	protected static final long[] BUCKETS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+	/**
+	 * JMX interface of a histogram.
+	 */
+	public interface HistogramMXBean {
+
+		long getCount();
+
+		double getTotalMillis();
+
+		double getMeanMillis();
+
+		double getMaxMillis();
+
+		/**
+		 * @return upper bound of the bucket containing the median
+		 */
+		double getMedianMillis();
+
+		/**
+		 * @return upper bound of the bucket containing the 95th percentile
+		 */
+		double getP95Millis();
+	}
+
+	/**
+	 * JMX interface of a counter.
+	 */
+	public interface CounterMXBean {
+
+		long getValue();
+	}
+
+	/**
+	 * Distribution of the latencies of a stage.
+	 */
+	public static class Histogram implements HistogramMXBean {
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		/**
+		 * @param duration latency in nanoseconds
+		 */
+		public void record(long duration) {
+			long millis = TimeUnit.NANOSECONDS.toMillis(duration);
+			int bucket = 0;
+			while ((bucket < BUCKETS.length) && (millis > BUCKETS[bucket])) {
+				bucket++;
+			}
+			buckets.incrementAndGet(bucket);
+			count.increment();
+			nanos.add(duration);
+			max.accumulateAndGet(duration, Math::max);
+		}
+
+		/**
+		 * @param other histogram whose latencies are added to this one
+		 */
+		public void add(Histogram other) {
+			for (int i = 0; i < buckets.length(); i++) {
+				buckets.addAndGet(i, other.buckets.get(i));
+			}
+			count.add(other.count.sum());
+			nanos.add(other.nanos.sum());
+			max.accumulateAndGet(other.max.get(), Math::max);
+		}
+
+		/**
+		 * @param started start of the stage from System.nanoTime()
+		 */
+		public void since(long started) {
+			record(System.nanoTime() - started);
+		}
+
+		@Override
+		public long getCount() {
+			return count.sum();
+		}
+
+		@Override
+		public double getTotalMillis() {
+			return nanos.sum() / 1e6;
+		}
+
+		@Override
+		public double getMeanMillis() {
+			long n = getCount();
+			return (n > 0) ? getTotalMillis() / n : 0;
+		}
+
+		@Override
+		public double getMaxMillis() {
+			return max.get() / 1e6;
+		}
+
+		@Override
+		public double getMedianMillis() {
+			return quantile(0.5);
+		}
+
+		@Override
+		public double getP95Millis() {
+			return quantile(0.95);
+		}
+
+		/**
+		 * @param q quantile between 0 and 1
+		 * @return upper bound of the bucket containing the quantile
+		 */
+		protected double quantile(double q) {
+			long n = getCount();
+			long seen = 0;
+			for (int i = 0; i < BUCKETS.length; i++) {
+				seen += buckets.get(i);
+				if ((n > 0) && (seen >= q * n)) {
+					return BUCKETS[i];
+				}
+			}
+			return getMaxMillis();
+		}
+	}
+
+	/**
+	 * Monotonic counter.
+	 */
+	public static class Counter implements CounterMXBean {
+
+		private final LongAdder value = new LongAdder();
+
+		/**
+		 * @param amount amount to add
+		 */
+		public void add(long amount) {
+			value.add(amount);
+		}
+
+		public void increment() {
+			value.increment();
+		}
+
+		@Override
+		public long getValue() {
+			return value.sum();
+		}
+	}
+
+	/**
+	 * histograms by their name and label
+	 */
+	private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+	/**
+	 * counters by their name and label
+	 */
+	private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+	@com.typesafe.config.Optional
+	private String file = "";
+	@com.typesafe.config.Optional
+	private Duration interval = Duration.ofMinutes(1);
+
+	private ScheduledExecutorService writer = null;
+
+	/**
+	 * Get the histogram of the latencies of a stage.
+	 *
+	 * @param stage name of the stage
+	 * @param label name of the label or null
+	 * @param value value of the label
+	 * @return histogram, registered on first use
+	 */
+	public static Histogram latency(String stage, String label, String value) {
+		return histograms.computeIfAbsent(key(stage, label, value), k -> {
+			Histogram histogram = new Histogram();
+			register("Latency", stage, label, value, histogram);
+			return histogram;
+		});
+	}
+
+	/**
+	 * Get the latencies of all stages regardless of their labels.
+	 *
+	 * @return merged histograms by the name of the stage
+	 */
+	public static Map<String, Histogram> stages() {
+		Map<String, Histogram> stages = new TreeMap<>();
+		histograms.forEach((key, histogram) -> stages
+						.computeIfAbsent(key.replaceFirst("\\{.*", ""), k -> new Histogram())
+						.add(histogram));
+		return stages;
+	}
+
+	/**
+	 * Get a counter.
+	 *
+	 * @param name name of the counted quantity
+	 * @param label name of the label or null
+	 * @param value value of the label
+	 * @return counter, registered on first use
+	 */
+	public static Counter counter(String name, String label, String value) {
+		return counters.computeIfAbsent(key(name, label, value), k -> {
+			Counter counter = new Counter();
+			register("Counter", name, label, value, counter);
+			return counter;
+		});
+	}
+
+	/**
+	 * @return key of a metric in the Prometheus notation
+	 */
+	protected static String key(String name, String label, String value) {
+		return (label == null) ? name : name + "{" + label + "=\"" + escape(value) + "\"}";
+	}
+
+	/**
+	 * @return the label value escaped for the Prometheus text format
+	 */
+	protected static String escape(String value) {
+		return String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Register a metric in the platform MBean server.
+	 */
+	protected static void register(String type, String name, String label, String value, Object metric) {
+		try {
+			String object_name = DOMAIN + ":type=" + type + ",name=" + name
+							+ ((label != null) ? "," + label + "=" + ObjectName.quote(String.valueOf(value)) : "");
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metric, new ObjectName(object_name));
+		} catch (JMException ex) {
+			logger.debug("Unable to register metric " + name + ": " + ex.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Create the Prometheus text representation of all metrics.
+	 *
+	 * @return metrics in the Prometheus text format
+	 */
+	public static String toPrometheus() {
+		StringBuilder text = new StringBuilder();
+		String last = null;
+		for (Map.Entry<String, Histogram> metric : new TreeMap<>(histograms).entrySet()) {
+			String key = metric.getKey();
+			int brace = key.indexOf('{');
+			String name = PREFIX + ((brace < 0) ? key : key.substring(0, brace)) + "_seconds";
+			String labels = (brace < 0) ? "" : key.substring(brace + 1, key.length() - 1);
+			if (!name.equals(last)) {
+				text.append("# TYPE ").append(name).append(" histogram\n");
+				last = name;
+			}
+			Histogram histogram = metric.getValue();
+			long cumulative = 0;
+			for (int i = 0; i <= BUCKETS.length; i++) {
+				cumulative += histogram.buckets.get(i);
+				String bound = (i < BUCKETS.length)
+								? String.format(Locale.ROOT, "%.3f", BUCKETS[i] / 1000.0) : "+Inf";
+				text.append(name).append("_bucket{").append(labels).append(labels.isEmpty() ? "" : ",")
+								.append("le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+			}
+			String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+			text.append(name).append("_sum").append(suffix)
+							.append(String.format(Locale.ROOT, "%.6f", histogram.getTotalMillis() / 1000.0)).append('\n');
+			text.append(name).append("_count").append(suffix).append(histogram.getCount()).append('\n');
+		}
+		last = null;
+		for (Map.Entry<String, Counter> metric : new TreeMap<>(counters).entrySet()) {
+			String key = metric.getKey();
+			int brace = key.indexOf('{');
+			String name = PREFIX + ((brace < 0) ? key : key.substring(0, brace)) + "_total";
+			if (!name.equals(last)) {
+				text.append("# TYPE ").append(name).append(" counter\n");
+				last = name;
+			}
+			text.append(name).append((brace < 0) ? "" : key.substring(brace)).append(' ')
+							.append(metric.getValue().getValue()).append('\n');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Start writing the metrics file in the configured interval.
+	 */
+	public synchronized void start() {
+		if (getFile().isEmpty() || (writer != null)) {
+			return;
+		}
+		writer = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "metrics-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(1000, getInterval().toMillis());
+		writer.scheduleAtFixedRate(this::write, period, period, TimeUnit.MILLISECONDS);
+		logger.debug("Writing metrics to " + getFile() + " every " + getInterval());
+	}
+
+	/**
+	 * Stop the periodic writing and write the final metrics.
+	 */
+	public synchronized void stop() {
+		if (writer != null) {
+			writer.shutdownNow();
+			writer = null;
+		}
+		if (!getFile().isEmpty()) {
+			write();
+		}
+	}
+
+	/**
+	 * Replace the metrics file atomically, so it is never read incomplete.
+	 */
+	protected void write() {
+		Path path = Paths.get(getFile());
+		try {
+			Path temp = Files.createTempFile(path.toAbsolutePath().getParent(),
+							path.getFileName().toString(), ".tmp");
+			try {
+				try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+					out.write(toPrometheus());
+				}
+				Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		} catch (IOException ex) {
+			logger.warn("Unable to write metrics to " + path + ": " + ex.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * @return the file
+	 */
+	public String getFile() {
+		return file;
+	}
+
+	/**
+	 * @param file the file to set
+	 */
+	public void setFile(String file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return the interval
+	 */
+	public Duration getInterval() {
+		return interval;
+	}
+
+	/**
+	 * @param interval the interval to set
+	 */
+	public void setInterval(Duration interval) {
+		this.interval = interval;
+	}
+
+}
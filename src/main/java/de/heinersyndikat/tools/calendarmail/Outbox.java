@@ -0,0 +1,664 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous sending of the reminder emails.
+ *
+ * The reminders only put their messages into the outbox; separate sender
+ * threads deliver them via the email server, one for each connection of its
+ * pool. Failed deliveries are retried
+ * with exponentially growing delays. If a file is configured, the messages
+ * are kept in an append-only journal until they are delivered, so pending
+ * messages are sent after a restart of the program.
+ *
+ * The journal consists of records of a kind, the id of the message and for
+ * new messages the MIME data of the message. A delivered message is marked
+ * by a record without data. If the server refuses some receivers only
+ * temporarily, the message is retried for these receivers; a record with
+ * their addresses restricts the message to them. The journal is compacted on
+ * start and emptied when all messages are delivered.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class Outbox {
+
+	/**
+	 * Logger instance
+	 */
+	private static transient final Logger logger
+					= LoggerFactory.getLogger(Thread.currentThread().getStackTrace()[1].getClassName());
+
+	public static final String CONFIG_KEYWORD = "outbox";
+	protected static final byte RECORD_MESSAGE = 1;
+	protected static final byte RECORD_DONE = 2;
+	protected static final byte RECORD_RECIPIENTS = 3;
+
+	/**
+	 * Message waiting for delivery.
+	 */
+	protected static class Pending {
+
+		private final long id;
+		private final byte[] data;
+		private int attempts = 0;
+		/**
+		 * receivers still to be sent to, null for all of the message
+		 */
+		private Address[] recipients = null;
+
+		Pending(long id, byte[] data) {
+			this.id = id;
+			this.data = data;
+		}
+
+		/**
+		 * @return the MIME data of the message
+		 */
+		byte[] getData() {
+			return data;
+		}
+
+		/**
+		 * @return the receivers still to be sent to, null for all
+		 */
+		Address[] getRecipients() {
+			return recipients;
+		}
+	}
+
+	@com.typesafe.config.Optional
+	private String file = "";
+	@com.typesafe.config.Optional
+	private int max_attempts = 10;
+	@com.typesafe.config.Optional
+	private Duration initial_backoff = Duration.ofSeconds(30);
+	@com.typesafe.config.Optional
+	private Duration max_backoff = Duration.ofHours(1);
+	@com.typesafe.config.Optional
+	private Duration drain_timeout = Duration.ofMinutes(1);
+
+	/**
+	 * messages not yet delivered by their id
+	 */
+	private final Map<Long, Pending> pending = new LinkedHashMap<>();
+	private long next_id = 1;
+	private FileChannel journal = null;
+	private ScheduledExecutorService sender = null;
+
+	/**
+	 * Get the sender threads, create them on first use.
+	 *
+	 * @return executor of the deliveries
+	 */
+	protected synchronized ScheduledExecutorService getSender() {
+		if (sender == null) {
+			int threads = Math.max(1, CalendarMailConfiguration.INSTANCE.getEmailserver().getPool_size());
+			AtomicInteger count = new AtomicInteger();
+			sender = Executors.newScheduledThreadPool(threads, task -> {
+				Thread thread = new Thread(task, "outbox-sender-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return sender;
+	}
+
+	/**
+	 * Put a message into the outbox for delivery.
+	 *
+	 * @param message message to be sent
+	 * @throws MessagingException
+	 * @throws IOException if the message cannot be written to the journal
+	 */
+	public void submit(Message message) throws MessagingException, IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		message.saveChanges();
+		message.writeTo(bytes);
+		submit(Collections.singletonList(bytes.toByteArray()));
+	}
+
+	/**
+	 * Put encoded messages into the outbox for delivery.
+	 *
+	 * The messages are split into a part for each connection of the email
+	 * server; each part is sent one after another via a single connection.
+	 *
+	 * @param messages MIME data of the messages to be sent
+	 * @throws IOException if the messages cannot be written to the journal
+	 */
+	public void submit(List<byte[]> messages) throws IOException {
+		List<Pending> entries = new ArrayList<>(messages.size());
+		synchronized (this) {
+			for (byte[] data : messages) {
+				Pending entry = new Pending(next_id++, data);
+				if (journal != null) {
+					write(RECORD_MESSAGE, entry.id, entry.data);
+				}
+				pending.put(entry.id, entry);
+				entries.add(entry);
+			}
+			// one flush to the disk for the whole batch
+			if (journal != null) {
+				journal.force(false);
+			}
+		}
+		dispatch(entries);
+	}
+
+	/**
+	 * Distribute messages to the sender threads.
+	 *
+	 * @param entries messages to be sent
+	 */
+	protected void dispatch(List<Pending> entries) {
+		// messages restricted to some receivers are sent separately
+		List<Pending> complete = new ArrayList<>(entries.size());
+		for (Pending entry : entries) {
+			if (entry.recipients != null) {
+				getSender().execute(() -> deliver(entry));
+			} else {
+				complete.add(entry);
+			}
+		}
+		if (complete.size() <= 1) {
+			complete.forEach(entry -> getSender().execute(() -> deliver(entry)));
+			return;
+		}
+		int parts = Math.min(complete.size(),
+						Math.max(1, CalendarMailConfiguration.INSTANCE.getEmailserver().getPool_size()));
+		int part_size = (complete.size() + parts - 1) / parts;
+		for (int from = 0; from < complete.size(); from += part_size) {
+			List<Pending> part = complete.subList(from, Math.min(complete.size(), from + part_size));
+			getSender().execute(() -> deliverAll(part));
+		}
+	}
+
+	/**
+	 * Deliver several messages via a single connection.
+	 *
+	 * Failed messages are retried separately.
+	 *
+	 * @param entries messages to be sent
+	 */
+	protected void deliverAll(List<Pending> entries) {
+		EmailServer server = CalendarMailConfiguration.INSTANCE.getEmailserver();
+		List<MimeMessage> messages = new ArrayList<>(entries.size());
+		for (Pending entry : entries) {
+			entry.attempts++;
+			try {
+				messages.add(new MimeMessage(server.getSession(), new ByteArrayInputStream(entry.data)));
+			} catch (MessagingException ex) {
+				logger.error("Email " + entry.id + " is invalid: " + ex.getLocalizedMessage());
+				messages.add(null);
+			}
+		}
+		List<MimeMessage> valid = messages.stream().filter(Objects::nonNull).collect(Collectors.toList());
+		MessagingException[] failures = server.sendAll(valid);
+		int sent = 0;
+		for (int i = 0, j = 0; i < entries.size(); i++) {
+			Pending entry = entries.get(i);
+			if (messages.get(i) == null) {
+				done(entry);
+				continue;
+			}
+			MessagingException failure = failures[j++];
+			if (failure == null) {
+				sent++;
+				Metrics.counter("emails_sent", null, null).increment();
+				done(entry);
+			} else {
+				retry(entry, failure);
+			}
+		}
+		logger.info(sent + " of " + entries.size() + " emails sent");
+	}
+
+	/**
+	 * Try to deliver a message and schedule a retry on failure.
+	 *
+	 * @param entry message to be sent
+	 */
+	protected void deliver(Pending entry) {
+		EmailServer server = CalendarMailConfiguration.INSTANCE.getEmailserver();
+		entry.attempts++;
+		try {
+			MimeMessage message = new MimeMessage(server.getSession(), new ByteArrayInputStream(entry.data));
+			server.send(message, entry.recipients);
+			logger.info("Email " + entry.id + " '" + message.getSubject() + "' sent to "
+							+ ((entry.recipients != null) ? entry.recipients : message.getAllRecipients()).length
+							+ " receivers");
+			Metrics.counter("emails_sent", null, null).increment();
+			done(entry);
+		} catch (MessagingException | RuntimeException ex) {
+			retry(entry, ex);
+		}
+	}
+
+	/**
+	 * Schedule the retry of a failed message or drop it.
+	 *
+	 * @param entry failed message
+	 * @param ex failure of the last attempt
+	 */
+	protected void retry(Pending entry, Exception ex) {
+		if (ex instanceof SendFailedException) {
+			SendFailedException failed = (SendFailedException) ex;
+			report(entry, failed);
+			if ((failed.getInvalidAddresses() != null) && (failed.getInvalidAddresses().length > 0)) {
+				Metrics.counter("emails_refused", null, null).increment();
+			}
+			Address[] unsent = failed.getValidUnsentAddresses();
+			if ((unsent == null) || (unsent.length == 0)) {
+				// only invalid addresses are left, a retry does not help
+				done(entry);
+				return;
+			}
+			// temporarily refused receivers, e.g. by greylisting
+			restrict(entry, unsent);
+		}
+		if (entry.attempts >= getMax_attempts()) {
+			logger.error("Email " + entry.id + " dropped after " + entry.attempts + " attempts: "
+							+ ex.getLocalizedMessage());
+			Metrics.counter("emails_dropped", null, null).increment();
+			done(entry);
+			return;
+		}
+		Metrics.counter("email_retries", null, null).increment();
+		Duration delay = backoff(entry.attempts);
+		logger.warn("Sending email " + entry.id + " failed (" + ex.getLocalizedMessage()
+						+ ") - retry in " + delay.getSeconds() + "s");
+		getSender().schedule(() -> deliver(entry), delay.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Report the receivers refused by the server.
+	 *
+	 * @param entry partly or not sent message
+	 * @param ex failure containing the refused addresses
+	 */
+	protected static void report(Pending entry, SendFailedException ex) {
+		Address[] sent = ex.getValidSentAddresses();
+		Address[] invalid = ex.getInvalidAddresses();
+		Address[] unsent = ex.getValidUnsentAddresses();
+		String refused = join(invalid);
+		String deferred = join(unsent);
+		if ((sent != null) && (sent.length > 0)) {
+			logger.warn("Email " + entry.id + " sent to " + sent.length + " receivers, refused: " + refused
+							+ ", deferred: " + deferred);
+		} else {
+			logger.error("Email " + entry.id + " not accepted (" + ex.getLocalizedMessage() + "), refused: "
+							+ refused + ", deferred: " + deferred);
+		}
+	}
+
+	/**
+	 * @param addresses addresses or null
+	 * @return the addresses separated by commas
+	 */
+	protected static String join(Address[] addresses) {
+		return (addresses == null) ? ""
+						: Stream.of(addresses).map(Address::toString).collect(Collectors.joining(", "));
+	}
+
+	/**
+	 * Restrict a message to the receivers not yet sent to.
+	 *
+	 * @param entry partly sent message
+	 * @param recipients receivers still to be sent to
+	 */
+	protected synchronized void restrict(Pending entry, Address[] recipients) {
+		entry.recipients = recipients;
+		try {
+			append(RECORD_RECIPIENTS, entry.id, encode(recipients));
+		} catch (IOException ex) {
+			logger.warn("Unable to update outbox journal: " + ex.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * @param recipients addresses of receivers
+	 * @return the addresses as journal data
+	 */
+	protected static byte[] encode(Address[] recipients) {
+		return InternetAddress.toString(recipients).getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param data addresses as journal data
+	 * @return the addresses of receivers or null, if they are invalid
+	 */
+	protected static Address[] decode(byte[] data) {
+		try {
+			return InternetAddress.parse(new String(data, StandardCharsets.UTF_8));
+		} catch (AddressException ex) {
+			logger.warn("Invalid receivers in outbox journal: " + ex.getLocalizedMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @param attempts number of failed attempts
+	 * @return delay before the next attempt
+	 */
+	protected Duration backoff(int attempts) {
+		Duration delay = getInitial_backoff();
+		for (int i = 1; (i < attempts) && (delay.compareTo(getMax_backoff()) < 0); i++) {
+			delay = delay.multipliedBy(2);
+		}
+		return (delay.compareTo(getMax_backoff()) < 0) ? delay : getMax_backoff();
+	}
+
+	/**
+	 * Remove a delivered or dropped message from the outbox.
+	 *
+	 * @param entry finished message
+	 */
+	protected synchronized void done(Pending entry) {
+		pending.remove(entry.id);
+		try {
+			if (pending.isEmpty() && (journal != null)) {
+				journal.truncate(0);
+			} else {
+				append(RECORD_DONE, entry.id, null);
+			}
+		} catch (IOException ex) {
+			logger.warn("Unable to update outbox journal: " + ex.getLocalizedMessage());
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Append a record to the journal, if one is configured.
+	 *
+	 * @param kind kind of the record
+	 * @param id id of the message
+	 * @param data MIME data of a new message, addresses of receivers or null
+	 * @throws IOException
+	 */
+	protected void append(byte kind, long id, byte[] data) throws IOException {
+		if (journal == null) {
+			return;
+		}
+		write(kind, id, data);
+		journal.force(false);
+	}
+
+	/**
+	 * Write a record to the journal without forcing it to the disk.
+	 *
+	 * @param kind kind of the record
+	 * @param id id of the message
+	 * @param data MIME data of a new message, addresses of receivers or null
+	 * @throws IOException
+	 */
+	protected void write(byte kind, long id, byte[] data) throws IOException {
+		int length = (data != null) ? data.length : 0;
+		ByteBuffer record = ByteBuffer.allocate(13 + length);
+		record.put(kind).putLong(id).putInt(length);
+		if (data != null) {
+			record.put(data);
+		}
+		record.flip();
+		while (record.hasRemaining()) {
+			journal.write(record);
+		}
+	}
+
+	/**
+	 * Open the journal and resume the delivery of its pending messages.
+	 *
+	 * The journal is rewritten with the pending messages only.
+	 */
+	public synchronized void resume() {
+		if (getFile().isEmpty() || (journal != null)) {
+			return;
+		}
+		Path path = Paths.get(getFile());
+		Map<Long, Pending> restored;
+		try {
+			restored = replay(path);
+			if (Files.exists(path)) {
+				compact(path, restored);
+			}
+			journal = FileChannel.open(path, StandardOpenOption.CREATE,
+							StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		} catch (IOException ex) {
+			logger.warn("Unable to open outbox journal " + path + ": " + ex.getLocalizedMessage());
+			return;
+		}
+		pending.putAll(restored);
+		if (!restored.isEmpty()) {
+			logger.info("Resuming delivery of " + restored.size() + " pending emails");
+			dispatch(new ArrayList<>(pending.values()));
+		}
+	}
+
+	/**
+	 * Read the pending messages of a journal.
+	 *
+	 * A truncated last record of an interrupted writing is ignored. A record
+	 * with an invalid length ends the journal as well.
+	 *
+	 * @param path journal file
+	 * @return pending messages by their id
+	 * @throws IOException
+	 */
+	protected synchronized Map<Long, Pending> replay(Path path) throws IOException {
+		Map<Long, Pending> restored = new LinkedHashMap<>();
+		if (!Files.exists(path)) {
+			return restored;
+		}
+		long remaining = Files.size(path);
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+			while (true) {
+				byte kind = in.readByte();
+				long id = in.readLong();
+				int length = in.readInt();
+				remaining -= 13;
+				if ((length < 0) || (length > remaining)) {
+					logger.warn("Invalid record length " + length + " in outbox journal " + path
+									+ ", ignoring the rest");
+					break;
+				}
+				remaining -= length;
+				byte[] data = new byte[length];
+				in.readFully(data);
+				if (kind == RECORD_MESSAGE) {
+					restored.put(id, new Pending(id, data));
+				} else if (kind == RECORD_RECIPIENTS) {
+					if (restored.containsKey(id)) {
+						restored.get(id).recipients = decode(data);
+					}
+				} else {
+					restored.remove(id);
+				}
+				next_id = Math.max(next_id, id + 1);
+			}
+		} catch (EOFException ex) {
+			// end of the journal
+		}
+		return restored;
+	}
+
+	/**
+	 * Replace the journal by one with the pending messages only.
+	 *
+	 * @param path journal file
+	 * @param restored pending messages by their id
+	 * @throws IOException
+	 */
+	protected static void compact(Path path, Map<Long, Pending> restored) throws IOException {
+		Path temp = Files.createTempFile(path.toAbsolutePath().getParent(),
+						path.getFileName().toString(), ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+				for (Pending message : restored.values()) {
+					out.writeByte(RECORD_MESSAGE);
+					out.writeLong(message.id);
+					out.writeInt(message.data.length);
+					out.write(message.data);
+					if (message.recipients != null) {
+						byte[] recipients = encode(message.recipients);
+						out.writeByte(RECORD_RECIPIENTS);
+						out.writeLong(message.id);
+						out.writeInt(recipients.length);
+						out.write(recipients);
+					}
+				}
+			}
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Wait for the delivery of the pending messages and stop the sender.
+	 *
+	 * Messages not delivered within the drain timeout are kept in the
+	 * journal for the next start.
+	 */
+	public void drain() {
+		long deadline = System.currentTimeMillis() + getDrain_timeout().toMillis();
+		synchronized (this) {
+			long remaining;
+			while (!pending.isEmpty() && ((remaining = deadline - System.currentTimeMillis()) > 0)) {
+				try {
+					wait(remaining);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			if (!pending.isEmpty()) {
+				logger.warn(pending.size() + " emails not sent"
+								+ ((journal != null) ? " - kept for the next start" : ""));
+			}
+		}
+		ScheduledExecutorService stopping;
+		synchronized (this) {
+			stopping = sender;
+			sender = null;
+		}
+		if (stopping != null) {
+			stopping.shutdownNow();
+		}
+		synchronized (this) {
+			if (journal != null) {
+				try {
+					journal.close();
+				} catch (IOException ex) {
+					logger.debug("Closing outbox journal failed: " + ex.getLocalizedMessage());
+				}
+				journal = null;
+			}
+		}
+	}
+
+	/**
+	 * @return the file
+	 */
+	public String getFile() {
+		return file;
+	}
+
+	/**
+	 * @param file the file to set
+	 */
+	public void setFile(String file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return the max_attempts
+	 */
+	public int getMax_attempts() {
+		return max_attempts;
+	}
+
+	/**
+	 * @param max_attempts the max_attempts to set
+	 */
+	public void setMax_attempts(int max_attempts) {
+		this.max_attempts = max_attempts;
+	}
+
+	/**
+	 * @return the initial_backoff
+	 */
+	public Duration getInitial_backoff() {
+		return initial_backoff;
+	}
+
+	/**
+	 * @param initial_backoff the initial_backoff to set
+	 */
+	public void setInitial_backoff(Duration initial_backoff) {
+		this.initial_backoff = initial_backoff;
+	}
+
+	/**
+	 * @return the max_backoff
+	 */
+	public Duration getMax_backoff() {
+		return max_backoff;
+	}
+
+	/**
+	 * @param max_backoff the max_backoff to set
+	 */
+	public void setMax_backoff(Duration max_backoff) {
+		this.max_backoff = max_backoff;
+	}
+
+	/**
+	 * @return the drain_timeout
+	 */
+	public Duration getDrain_timeout() {
+		return drain_timeout;
+	}
+
+	/**
+	 * @param drain_timeout the drain_timeout to set
+	 */
+	public void setDrain_timeout(Duration drain_timeout) {
+		this.drain_timeout = drain_timeout;
+	}
+
+}
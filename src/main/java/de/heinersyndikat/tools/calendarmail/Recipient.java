@@ -0,0 +1,87 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.time.ZoneId;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Receiver of a reminder with its own language and time zone.
+ *
+ * Empty values use the locale of the reminder and the time zone of the
+ * configuration.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class Recipient {
+
+	private String address;
+	/**
+	 * parsed address, null if it is invalid
+	 */
+	private InternetAddress internet_address = null;
+	@com.typesafe.config.Optional
+	private String locale = "";
+	@com.typesafe.config.Optional
+	private String timezone = "";
+
+	/**
+	 * @return the address
+	 */
+	public String getAddress() {
+		return address;
+	}
+
+	/**
+	 * @param address the address to set
+	 */
+	public void setAddress(String address) {
+		this.address = address;
+		this.internet_address = Reminder.parseAddress(address);
+	}
+
+	/**
+	 * @return the parsed address or null, if it is invalid
+	 */
+	public InternetAddress getInternetAddress() {
+		return internet_address;
+	}
+
+	/**
+	 * @return the locale
+	 */
+	public String getLocale() {
+		return locale;
+	}
+
+	/**
+	 * @param locale the locale to set
+	 */
+	public void setLocale(String locale) {
+		this.locale = locale;
+	}
+
+	/**
+	 * @return the timezone
+	 */
+	public String getTimezone() {
+		return timezone;
+	}
+
+	/**
+	 * @param timezone the timezone to set
+	 * @throws java.time.DateTimeException if the time zone is unknown
+	 */
+	public void setTimezone(String timezone) {
+		if (!timezone.isEmpty()) {
+			ZoneId.of(timezone);
+		}
+		this.timezone = timezone;
+	}
+
+	/**
+	 * @return the time zone to display the events in for this recipient
+	 */
+	public ZoneId getZone() {
+		return timezone.isEmpty() ? CalendarMailConfiguration.INSTANCE.getTimezone() : ZoneId.of(timezone);
+	}
+
+}
@@ -0,0 +1,68 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * Individually addressed copies of a message.
+ *
+ * The message is encoded once without receivers and message id. The copy
+ * for a recipient only prepends these two headers to the encoded message,
+ * so the body is neither rendered nor encoded again for each recipient.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class RecipientMessages {
+
+	/**
+	 * counter for unique message ids
+	 */
+	private static final AtomicLong sequence = new AtomicLong();
+
+	private final byte[] encoded;
+	private final String domain;
+
+	/**
+	 * Encode the shared part of the message.
+	 *
+	 * @param message message with sender, subject and body
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	public RecipientMessages(MimeMessage message) throws MessagingException, IOException {
+		message.removeHeader("To");
+		message.removeHeader("Cc");
+		message.removeHeader("Bcc");
+		message.saveChanges();
+		message.removeHeader("Message-ID");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		message.writeTo(bytes);
+		encoded = bytes.toByteArray();
+		String from = ((InternetAddress) message.getFrom()[0]).getAddress();
+		domain = from.substring(from.indexOf('@') + 1);
+	}
+
+	/**
+	 * Create the MIME data of the copy for a recipient.
+	 *
+	 * @param recipient receiver of the copy
+	 * @return encoded message addressed to the recipient
+	 */
+	public byte[] forRecipient(InternetAddress recipient) {
+		String headers = MimeUtility.fold(4, recipient.toString()) + "\r\n"
+						+ "Message-ID: <" + System.currentTimeMillis() + "." + sequence.incrementAndGet()
+						+ ".CalendarMail@" + domain + ">\r\n";
+		byte[] prefix = ("To: " + headers).getBytes(StandardCharsets.US_ASCII);
+		byte[] copy = new byte[prefix.length + encoded.length];
+		System.arraycopy(prefix, 0, copy, 0, prefix.length);
+		System.arraycopy(encoded, 0, copy, prefix.length, encoded.length);
+		return copy;
+	}
+
+}
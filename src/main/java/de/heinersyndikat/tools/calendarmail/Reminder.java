@@ -1,26 +1,26 @@
 package de.heinersyndikat.tools.calendarmail;
 
-import java.text.MessageFormat;
+import java.io.IOException;
 import java.text.ParseException;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Properties;
-import java.util.ResourceBundle;
+import java.util.Map;
+import java.util.Objects;
 import java.util.stream.Collectors;
 import javax.mail.Address;
 import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
-import net.fortuna.ical4j.filter.Filter;
-import net.fortuna.ical4j.filter.PeriodRule;
-import net.fortuna.ical4j.filter.Rule;
+import javax.mail.internet.MimeMessage;
 import net.fortuna.ical4j.model.DateTime;
 import net.fortuna.ical4j.model.Dur;
 import net.fortuna.ical4j.model.Period;
+import net.fortuna.ical4j.model.component.VEvent;
 import org.quartz.CronScheduleBuilder;
 import org.quartz.JobBuilder;
 import org.quartz.JobDetail;
@@ -50,8 +50,54 @@ public class Reminder {
 	private String name;
 	private String cron_trigger;
 	private int days_in_advance;
-	private List<String> receivers;
-//	private List<Address> addresses;
+	@com.typesafe.config.Optional
+	private List<String> receivers = new ArrayList<>();
+	@com.typesafe.config.Optional
+	private List<Recipient> recipients = new ArrayList<>();
+	@com.typesafe.config.Optional
+	private boolean per_recipient = false;
+	@com.typesafe.config.Optional
+	private String locale = "";
+	/**
+	 * introduction of the email body, created on first use
+	 */
+	private String intro = null;
+	/**
+	 * parsed addresses of the receivers
+	 */
+	private List<InternetAddress> addresses = new ArrayList<>();
+	/**
+	 * receivers grouped by language and time zone, created on first use
+	 */
+	private Map<Audience, List<InternetAddress>> audiences = null;
+
+	/**
+	 * Language and time zone shared by several receivers.
+	 */
+	protected static class Audience {
+
+		private final String locale;
+		private final ZoneId zone;
+
+		Audience(String locale, ZoneId zone) {
+			this.locale = locale;
+			this.zone = zone;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Audience)) {
+				return false;
+			}
+			Audience other = (Audience) obj;
+			return locale.equals(other.locale) && zone.equals(other.zone);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(locale, zone);
+		}
+	}
 
 	/**
 	 * Create a new Quartz job.
@@ -86,100 +132,180 @@ public class Reminder {
 	}
 
 	/**
-	 * Get the defined filter for this reminder.
+	 * Get the time period of events for this reminder.
 	 *
-	 * @return created filter
+	 * @return period from today for the days in advance
 	 */
-	protected Filter getFilter() {
+	protected Period getPeriod() {
 		// get actual timestamp (beginning of day)
 		Calendar today = Calendar.getInstance();
 		today.set(java.util.Calendar.HOUR_OF_DAY, 0);
 		today.clear(java.util.Calendar.MINUTE);
 		today.clear(java.util.Calendar.SECOND);
 		// define the time period
-		Period period = new Period(new DateTime(today.getTime()), new Dur(days_in_advance, 0, 0, 0));
-		// create filter for time period
-		Rule[] rules = {new PeriodRule(period)};
-		Filter filter = new Filter(rules, Filter.MATCH_ALL);
-		return filter;
+		return new Period(new DateTime(today.getTime()), new Dur(days_in_advance, 0, 0, 0));
+	}
+
+	/**
+	 * @return the compiled email texts of the locale of this reminder
+	 */
+	protected MessageTemplates getTemplates() {
+		return CalendarMailConfiguration.INSTANCE.getTemplates(getLocale());
+	}
+
+	/**
+	 * Get the introduction of the email body.
+	 *
+	 * It only depends on the configuration and is created on first use.
+	 *
+	 * @return introduction text
+	 */
+	protected synchronized String getIntro() {
+		if (intro == null) {
+			intro = getTemplates().intro(getName(), getDays_in_advance(),
+							CalendarMailConfiguration.INSTANCE.getCalendarNames());
+		}
+		return intro;
+	}
+
+	/**
+	 * Forget the texts and groupings depending on the global configuration.
+	 *
+	 * Used for reminders kept when reloading the configuration, as the
+	 * calendar names and the time zone may have changed.
+	 */
+	protected synchronized void resetGlobals() {
+		intro = null;
+		audiences = null;
+	}
+
+	/**
+	 * Group the receivers by their language and time zone.
+	 *
+	 * The grouping only depends on the configuration and is created on first
+	 * use.
+	 *
+	 * @return addresses of the receivers of each audience
+	 */
+	protected synchronized Map<Audience, List<InternetAddress>> getAudiences() {
+		if (audiences == null) {
+			audiences = new LinkedHashMap<>();
+			if (!addresses.isEmpty()) {
+				audiences.put(new Audience(getLocale(), CalendarMailConfiguration.INSTANCE.getTimezone()),
+								addresses);
+			}
+			getRecipients().stream().filter(rec -> rec.getInternetAddress() != null).forEach(rec
+							-> audiences.computeIfAbsent(new Audience(rec.getLocale().isEmpty()
+											? getLocale() : rec.getLocale(), rec.getZone()), a -> new ArrayList<>())
+							.add(rec.getInternetAddress()));
+		}
+		return audiences;
+	}
+
+	/**
+	 * Parse the address of a receiver.
+	 *
+	 * @param rec address of the receiver
+	 * @return parsed address or null, if it is invalid
+	 */
+	protected static InternetAddress parseAddress(String rec) {
+		try {
+			return new InternetAddress(rec, true);
+		} catch (MessagingException ex) {
+			logger.warn("Invalid receiver address '" + rec + "': " + ex.getLocalizedMessage());
+			return null;
+		}
 	}
 
 	/**
 	 * Create the email message body.
 	 *
+	 * @param events events of the reminder
+	 * @param audience language and time zone of the receivers
 	 * @return string containing message body
 	 */
-	protected String createBody() {
-		// Create textual representation for all calendar events
-		logger.info("Fetching calendar information for reminder [" + getName()
-						+ "] ...");
-		List<RemoteCalendar> calendars = CalendarMailConfiguration.INSTANCE.getCalendars();
-		Collection events = RemoteCalendar.filterAll(calendars, getFilter());
-		if (events.isEmpty()) {
-			logger.info("No events for reminder [" + getName() + "] - Skip sending");
-			return "";
+	protected String createBody(List<VEvent> events, Audience audience) {
+		long started = System.nanoTime();
+		MessageTemplates templates = CalendarMailConfiguration.INSTANCE.getTemplates(audience.locale);
+		// combine the message body parts, render the events directly into the body
+		EventRenderer renderer = EventRenderer.get(audience.zone);
+		StringBuilder builder = renderer.buffer();
+		builder.append(audience.locale.equals(getLocale()) ? getIntro()
+						: templates.intro(getName(), getDays_in_advance(),
+										CalendarMailConfiguration.INSTANCE.getCalendarNames()));
+		int events_start = builder.length();
+		renderer.render(events, builder);
+		if (logger.isDebugEnabled()) {
+			logger.debug("Events[" + getName() + "]:\n" + builder.substring(events_start));
 		}
-		logger.info("Found " + events.size() + " relevant entries for reminder ["
-						+ getName() + "]");
-		String all_events = RemoteCalendar.eventlist_to_string(events);
-		// Create the email body entry text
-		ResourceBundle message_bundle = CalendarMailConfiguration.INSTANCE.getMessages();
-		logger.debug("Events[" + getName() + "]:\n" + all_events);
-		MessageFormat bodyFormat = new MessageFormat(message_bundle.getString("email.body.intro"));
-		String calendarNames = calendars.stream()
-						.map(RemoteCalendar::getHostname)
-						.collect(Collectors.joining(", "));
-		Object[] params = {getName(), getDays_in_advance(), calendarNames};
-		String intro = bodyFormat.format(params);
-		// Create the email signature text
-		MessageFormat sigFormat = new MessageFormat(message_bundle.getString("email.body.signature"));
-		Properties app_prop = CalendarMailConfiguration.INSTANCE.getAppProperties();
-		Object[] sig_params = {app_prop.getProperty("application.name", "CalendarMail"),
-			app_prop.getProperty("application.version", ""),
-			app_prop.getProperty("application.url", ""),
-			app_prop.getProperty("application.vendorName", "Heinersyndikat e.V."),
-			app_prop.getProperty("application.vendorURL", "")};
-		String signature = sigFormat.format(sig_params);
-		// combine the message body parts
-		StringBuilder builder = new StringBuilder();
-		builder.append(intro);
-		builder.append(all_events);
-		builder.append(message_bundle.getString("email.body.greeting"));
-		builder.append(signature);
-		return builder.toString();
+		builder.append(templates.getGreeting());
+		builder.append(templates.getSignature());
+		String body = builder.toString();
+		Metrics.latency("render", "reminder", getName()).since(started);
+		return body;
 	}
 
 	/**
 	 * Send the emails for all calendars to given receivers.
 	 */
 	public void sendEmail() {
+		logger.info("Fetching calendar information for reminder [" + getName()
+						+ "] ...");
+		sendEmail(RemoteCalendar.readAll(CalendarMailConfiguration.INSTANCE.getCalendars()));
+	}
+
+	/**
+	 * Send the emails for calendars already read to given receivers.
+	 *
+	 * The body is rendered once for each language and time zone of the
+	 * receivers. In per recipient mode each receiver gets an individually
+	 * addressed copy, otherwise all receivers are put into one message.
+	 *
+	 * @param indexes indexes of the events of all calendars
+	 */
+	public void sendEmail(List<EventIndex> indexes) {
+		// Create textual representation for all calendar events
+		List<VEvent> events = RemoteCalendar.filterIndexes(indexes, getPeriod());
+		Metrics.counter("events_considered", "reminder", getName())
+						.add(indexes.stream().mapToInt(EventIndex::size).sum());
+		Metrics.counter("events_selected", "reminder", getName()).add(events.size());
+		if (events.isEmpty()) {
+			logger.info("No events for reminder [" + getName() + "] - Skip sending");
+			return;
+		}
+		logger.info("Found " + events.size() + " relevant entries for reminder ["
+						+ getName() + "]");
+		EmailServer emailServer = CalendarMailConfiguration.INSTANCE.getEmailserver();
+		Outbox outbox = CalendarMailConfiguration.INSTANCE.getOutbox();
 		try {
-			String body = createBody();
-			if (body.isEmpty()) {
-				return;
-			}
-			// configure email content
-			EmailServer emailServer = CalendarMailConfiguration.INSTANCE.getEmailserver();
-			Message message = emailServer.createMessage();
-			// Subject
-			ResourceBundle message_bundle = CalendarMailConfiguration.INSTANCE.getMessages();
-			MessageFormat subjectFormat = new MessageFormat(message_bundle.getString("email.subject"));
-			Object[] params = {getName(), new Date()};
-			String subject = subjectFormat.format(params);
-			message.setSubject(subject);
-			message.setText(body);
-			receivers.stream().forEach(rec -> {
-				try {
-					Address addr = new InternetAddress(rec, true);
-					message.addRecipient(Message.RecipientType.BCC, addr);
-				} catch (MessagingException ex) {
-					logger.warn("Invalid receiver address '" + rec + "': " + ex.getLocalizedMessage());
+			for (Map.Entry<Audience, List<InternetAddress>> audience : getAudiences().entrySet()) {
+				// configure email content
+				MimeMessage message = emailServer.createMessage();
+				String subject = CalendarMailConfiguration.INSTANCE.getTemplates(audience.getKey().locale)
+								.subject(getName(), new Date());
+				message.setSubject(subject);
+				message.setText(createBody(events, audience.getKey()));
+				// hand the emails over to the sender
+				if (isPer_recipient()) {
+					RecipientMessages copies = new RecipientMessages(message);
+					outbox.submit(audience.getValue().stream()
+									.map(copies::forRecipient)
+									.collect(Collectors.toList()));
+				} else {
+					// split the receivers according to the limit of the server
+					List<InternetAddress> receivers = audience.getValue();
+					int batch_size = Math.max(1, emailServer.getMax_recipients());
+					for (int from = 0; from < receivers.size(); from += batch_size) {
+						List<InternetAddress> batch = receivers.subList(from,
+										Math.min(receivers.size(), from + batch_size));
+						message.setRecipients(Message.RecipientType.BCC, batch.toArray(new Address[0]));
+						outbox.submit(message);
+					}
 				}
-			});
-			// send email
-			Transport.send(message);
-			logger.info("Email for reminder [" + getName() + "] sent");
-		} catch (MessagingException ex) {
+				logger.info("Email for reminder [" + getName() + "] queued for "
+								+ audience.getValue().size() + " receivers");
+			}
+		} catch (MessagingException | IOException ex) {
 			throw new MailExceptionWrapper(ex);
 		}
 	}
@@ -222,17 +348,56 @@ public class Reminder {
 	/**
 	 * @param receivers the receivers to set
 	 */
-	public void setReceivers(List<String> receivers) {
+	public synchronized void setReceivers(List<String> receivers) {
 		this.receivers = receivers;
-//		addresses.clear();
-//		receivers.stream().forEach((rec) -> {
-//			try {
-//				Address addr = new InternetAddress(rec, true);
-//				addresses.add(addr);
-//			} catch (AddressException ex) {
-//				logger.warn("Invalid receiver address '" + rec + "': " + ex.getLocalizedMessage());
-//			}
-//		});
+		addresses = receivers.stream()
+						.map(Reminder::parseAddress)
+						.filter(Objects::nonNull)
+						.collect(Collectors.toList());
+		audiences = null;
+	}
+
+	/**
+	 * @return the recipients
+	 */
+	public List<Recipient> getRecipients() {
+		return recipients;
+	}
+
+	/**
+	 * @param recipients the recipients to set
+	 */
+	public synchronized void setRecipients(List<Recipient> recipients) {
+		this.recipients = recipients;
+		audiences = null;
+	}
+
+	/**
+	 * @return the per_recipient
+	 */
+	public boolean isPer_recipient() {
+		return per_recipient;
+	}
+
+	/**
+	 * @param per_recipient the per_recipient to set
+	 */
+	public void setPer_recipient(boolean per_recipient) {
+		this.per_recipient = per_recipient;
+	}
+
+	/**
+	 * @return the locale
+	 */
+	public String getLocale() {
+		return locale;
+	}
+
+	/**
+	 * @param locale the locale to set
+	 */
+	public void setLocale(String locale) {
+		this.locale = locale;
 	}
 
 	/**
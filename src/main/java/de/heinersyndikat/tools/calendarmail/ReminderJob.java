@@ -1,17 +1,27 @@
 package de.heinersyndikat.tools.calendarmail;
 
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 import org.quartz.Job;
 import org.quartz.JobDataMap;
 import org.quartz.JobDetail;
 import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
 import org.quartz.Scheduler;
 import org.quartz.SchedulerException;
 import org.quartz.SchedulerFactory;
 import org.quartz.Trigger;
+import org.quartz.TriggerKey;
 import org.quartz.impl.StdSchedulerFactory;
+import org.quartz.impl.matchers.GroupMatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,6 +51,14 @@ public class ReminderJob implements Job {
 	 * Scheduler instance
 	 */
 	protected static Scheduler sched;
+	/**
+	 * reading of the calendars shared by the reminders fired together
+	 */
+	private static CompletableFuture<List<EventIndex>> current_pass = null;
+	/**
+	 * number of reminders sharing the current reading
+	 */
+	private static int pass_reminders = 0;
 	
 	/**
 	 * Start scheduling of reminders.
@@ -51,17 +69,7 @@ public class ReminderJob implements Job {
 			sched = schedFact.getScheduler();
 			// create job and trigger for each Reminder
 			Map<String, Reminder> reminders = CalendarMailConfiguration.INSTANCE.getReminders();
-			reminders.values().stream().forEach(rem -> {
-				JobDetail job = rem.createJob();
-				try {
-					Trigger trigger = rem.createTrigger();
-					sched.scheduleJob(job, trigger);
-				} catch (java.text.ParseException ex) {
-					logger.warn("Cannot parse cron trigger: " + ex.getLocalizedMessage());
-				} catch (SchedulerException ex) {
-					logger.warn("Scheduling failed: " + ex.getLocalizedMessage());
-				}
-			});
+			reminders.values().stream().forEach(ReminderJob::schedule);
 			// start scheduler
 			sched.start();
 			// if no cron triggers used, shutdown scheduler after first executions
@@ -74,6 +82,25 @@ public class ReminderJob implements Job {
 				}
 				logger.info("No Cron triggers found -> exiting");
 				sched.shutdown(true);
+				// keep the revalidated events for the next execution
+				EventCache cache = CalendarMailConfiguration.INSTANCE.getEventcache();
+				cache.awaitRevalidations(CalendarMailConfiguration.INSTANCE.getCalendars().stream()
+								.map(RemoteCalendar::getTimeout)
+								.max(Duration::compareTo).orElse(Duration.ZERO));
+				cache.save();
+				CalendarMailConfiguration.INSTANCE.getOutbox().drain();
+				CalendarMailConfiguration.INSTANCE.getMetrics().stop();
+				CalendarMailConfiguration.INSTANCE.getEmailserver().close();
+				CalendarMailConfiguration.INSTANCE.getFetch().shutdown();
+				SardineTrustAlways.closeConnections();
+			} else {
+				// keep the latest events when the program is stopped
+				Runtime.getRuntime().addShutdownHook(new Thread(
+								() -> CalendarMailConfiguration.INSTANCE.getEventcache().save(), "snapshot"));
+				if (CalendarMailConfiguration.INSTANCE.isReload()
+								&& (CalendarMailConfiguration.INSTANCE.getConfigurationFile() != null)) {
+					ConfigWatcher.start(Paths.get(CalendarMailConfiguration.INSTANCE.getConfigurationFile()));
+				}
 			}
 		} catch (SchedulerException ex) {
 			logger.error("Scheduling failed: " + ex.getLocalizedMessage());
@@ -81,7 +108,136 @@ public class ReminderJob implements Job {
 		}
 	}
 
-/**
+	/**
+	 * Schedule the job of a reminder.
+	 *
+	 * @param rem reminder to schedule
+	 */
+	protected static void schedule(Reminder rem) {
+		JobDetail job = rem.createJob();
+		try {
+			Trigger trigger = rem.createTrigger();
+			sched.scheduleJob(job, trigger);
+		} catch (java.text.ParseException ex) {
+			logger.warn("Cannot parse cron trigger: " + ex.getLocalizedMessage());
+		} catch (SchedulerException ex) {
+			logger.warn("Scheduling failed: " + ex.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Reschedule the jobs of changed reminders after reloading the configuration.
+	 *
+	 * The jobs of the other reminders keep their triggers.
+	 *
+	 * @param changed names of the new or changed reminders
+	 * @param removed names of the removed reminders
+	 */
+	public static synchronized void reschedule(Collection<String> changed, Collection<String> removed) {
+		if (sched == null) {
+			return;
+		}
+		Stream.concat(changed.stream(), removed.stream()).forEach(name -> {
+			try {
+				sched.deleteJob(JobKey.jobKey(name));
+			} catch (SchedulerException ex) {
+				logger.warn("Unscheduling of reminder " + name + " failed: " + ex.getLocalizedMessage());
+			}
+		});
+		Map<String, Reminder> reminders = CalendarMailConfiguration.INSTANCE.getReminders();
+		changed.forEach(name -> schedule(reminders.get(name)));
+		if (!changed.isEmpty() || !removed.isEmpty()) {
+			logger.info("Rescheduled reminders: " + String.join(", ", changed)
+							+ (removed.isEmpty() ? "" : "; removed: " + String.join(", ", removed)));
+		}
+	}
+
+	/**
+	 * Read the calendars once for all reminders fired together.
+	 *
+	 * The first reminder waits for the configured coalescing window, if other
+	 * reminders are running or due within the window; all reminders fired
+	 * within this window share its reading of the calendars. The event cache
+	 * is saved once after each reading.
+	 *
+	 * @param scheduler scheduler executing the reminders
+	 * @return indexes of the events of all calendars
+	 */
+	protected static List<EventIndex> readCalendars(Scheduler scheduler) {
+		Duration window = CalendarMailConfiguration.INSTANCE.getFetch().getCoalesce_window();
+		List<RemoteCalendar> calendars = CalendarMailConfiguration.INSTANCE.getCalendars();
+		if (window.isZero() || window.isNegative()) {
+			List<EventIndex> indexes = RemoteCalendar.readAll(calendars);
+			CalendarMailConfiguration.INSTANCE.getEventcache().save();
+			return indexes;
+		}
+		CompletableFuture<List<EventIndex>> pass;
+		boolean first = false;
+		synchronized (ReminderJob.class) {
+			if (current_pass == null) {
+				current_pass = new CompletableFuture<>();
+				pass_reminders = 0;
+				first = true;
+			}
+			pass = current_pass;
+			pass_reminders++;
+		}
+		if (!first) {
+			logger.debug("Joining the reading of the calendars");
+			return pass.join();
+		}
+		if (othersDue(scheduler, window)) {
+			try {
+				Thread.sleep(window.toMillis());
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		int reminders;
+		synchronized (ReminderJob.class) {
+			current_pass = null;
+			reminders = pass_reminders;
+		}
+		logger.info("Fetching calendar information for " + reminders + " reminder(s) ...");
+		try {
+			pass.complete(RemoteCalendar.readAll(calendars));
+		} catch (RuntimeException ex) {
+			pass.completeExceptionally(ex);
+		}
+		CalendarMailConfiguration.INSTANCE.getEventcache().save();
+		return pass.join();
+	}
+
+	/**
+	 * Check whether other reminders may share a reading of the calendars.
+	 *
+	 * @param scheduler scheduler executing the reminders
+	 * @param window coalescing window
+	 * @return true, if another reminder is running or due within the window
+	 */
+	protected static boolean othersDue(Scheduler scheduler, Duration window) {
+		try {
+			if (scheduler.getCurrentlyExecutingJobs().size() > 1) {
+				return true;
+			}
+			Date until = new Date(System.currentTimeMillis() + window.toMillis());
+			for (String group : scheduler.getTriggerGroupNames()) {
+				for (TriggerKey key : scheduler.getTriggerKeys(GroupMatcher.triggerGroupEquals(group))) {
+					Trigger trigger = scheduler.getTrigger(key);
+					Date next = (trigger != null) ? trigger.getNextFireTime() : null;
+					if ((next != null) && !next.after(until)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		} catch (SchedulerException ex) {
+			logger.debug("Checking the due reminders failed: " + ex.getLocalizedMessage());
+			return true;
+		}
+	}
+
+	/**
 	 * Execution implementation.
 	 *
 	 * @param jec execution context
@@ -94,12 +250,17 @@ public class ReminderJob implements Job {
 		String name = dataMap.getString(KEY);
 		logger.info("Reminder to execute: " + name);
 		Reminder reminder = CalendarMailConfiguration.INSTANCE.getReminders().get(name);
+		if (reminder == null) {
+			logger.info("Reminder " + name + " removed from the configuration");
+			return;
+		}
 		// perform action
 		try {
-			reminder.sendEmail();
+			reminder.sendEmail(readCalendars(jec.getScheduler()));
 		} catch (MailExceptionWrapper ex) {
 			Throwable internal = ex.getCause();
 			logger.error(internal.getClass().getSimpleName() + ": " + internal.getLocalizedMessage());
+			Metrics.counter("reminder_failures", "reminder", name).increment();
 		}
 	}
 }
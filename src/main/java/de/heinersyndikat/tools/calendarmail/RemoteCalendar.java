@@ -1,32 +1,42 @@
 package de.heinersyndikat.tools.calendarmail;
 
 import com.github.sardine.DavResource;
-import com.github.sardine.Sardine;
+import com.github.sardine.impl.SardineException;
 import static de.heinersyndikat.tools.calendarmail.SardineDAVAccess.resource2uri;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
+import java.time.Duration;
 import java.time.Instant;
-import java.time.LocalDateTime;
+import java.time.LocalDate;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
 import java.util.stream.Collectors;
-import net.fortuna.ical4j.data.CalendarBuilder;
+import javax.xml.namespace.QName;
 import net.fortuna.ical4j.data.ParserException;
-import net.fortuna.ical4j.filter.Filter;
-import net.fortuna.ical4j.model.Calendar;
-import net.fortuna.ical4j.model.Component;
-import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.Period;
 import net.fortuna.ical4j.model.component.VEvent;
-import net.fortuna.ical4j.model.property.DtEnd;
-import net.fortuna.ical4j.model.property.DtStart;
-import net.fortuna.ical4j.model.property.Location;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,80 +55,508 @@ public class RemoteCalendar {
 
 	public static final String CONFIG_KEYWORD = "calendars";
 	public static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm");
+	/**
+	 * CalendarServer collection tag, changed with every modification
+	 */
+	protected static final QName GETCTAG = new QName("http://calendarserver.org/ns/", "getctag", "cs");
+	/**
+	 * fetch mode: list the collection and download its iCal files
+	 */
+	public static final String FETCH_LIST = "list";
+	/**
+	 * fetch mode: query the events of the reminder period from the server
+	 */
+	public static final String FETCH_QUERY = "query";
+	/**
+	 * fetch mode: synchronize the collection with the changes since the last
+	 * reading
+	 */
+	public static final String FETCH_SYNC = "sync";
 
 	private String hostname;
 	private String address;
 	private String username;
 	private String password;
+	@com.typesafe.config.Optional
+	private Duration cache_ttl = Duration.ZERO;
+	@com.typesafe.config.Optional
+	private Duration timeout = Duration.ofMinutes(2);
+	@com.typesafe.config.Optional
+	private String fetch_mode = FETCH_LIST;
+	/**
+	 * connection to the server, reused for all readings
+	 */
+	private SardineTrustAlways webdav = null;
 
 	/**
-	 * Read the CalDAV calendar from given ressource address.
+	 * Get the events of this calendar.
 	 *
 	 * @return collection of events in this calencar
 	 * @throws java.io.IOException
 	 */
 	public Collection getEvents() throws IOException {
+		return getEntry().getEvents();
+	}
+
+	/**
+	 * Get the cached events of this calendar.
+	 *
+	 * The events are taken from the event cache, if they were read within the
+	 * configured time to live. Otherwise only the resources changed since the
+	 * last reading are fetched from the server. Events restored from the
+	 * snapshot are used while they are revalidated in the background.
+	 * Concurrent readers of the same entry wait for a single reading.
+	 *
+	 * @return cache entry containing the events of this calendar
+	 * @throws java.io.IOException
+	 */
+	protected EventCache.Entry getEntry() throws IOException {
+		EventCache cache = CalendarMailConfiguration.INSTANCE.getEventcache();
+		String key = getCacheKey();
+		Lock lock = cache.lock(key);
+		try {
+			EventCache.Entry previous = cache.get(key);
+			if ((previous != null) && previous.isRestored() && previous.covers(getNeededUntil())) {
+				logger.info("Using " + previous.getEvents().size() + " events of snapshot for calendar "
+								+ getHostname() + " - revalidating in background");
+				cache.revalidate(key, () -> readEvents(previous));
+				return previous;
+			}
+			if ((previous != null) && !previous.isExpired(getCache_ttl())
+							&& previous.covers(getNeededUntil())) {
+				logger.info("Using " + previous.getEvents().size() + " cached events for calendar "
+								+ getHostname());
+				return previous;
+			}
+			EventCache.Entry entry = readEvents(previous);
+			cache.put(key, entry);
+			return entry;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the key of this calendar in the event cache.
+	 *
+	 * Results of a calendar-query are only valid for the queried period; they
+	 * are replaced when a later period is needed. Calendars read by different
+	 * users have separate entries, as the server may show them other events.
+	 *
+	 * @return key of the cache entry
+	 */
+	protected String getCacheKey() {
+		String key = getAddress();
+		if (FETCH_QUERY.equals(getFetch_mode())) {
+			key += "#" + FETCH_QUERY;
+		} else if (FETCH_SYNC.equals(getFetch_mode())) {
+			key += "#" + FETCH_SYNC;
+		}
+		if (getUsername() != null) {
+			key += " " + getUsername();
+		}
+		return key;
+	}
+
+	/**
+	 * @return begin of the period of events needed by the reminders
+	 */
+	protected Instant getFetchStart() {
+		return LocalDate.now().atStartOfDay(ZoneId.systemDefault()).toInstant();
+	}
+
+	/**
+	 * @return number of days of events needed by the reminders
+	 */
+	protected int getFetchDays() {
+		return CalendarMailConfiguration.INSTANCE.getMaxDaysInAdvance();
+	}
+
+	/**
+	 * @return last day of events needed by the reminders
+	 */
+	protected LocalDate getNeededUntil() {
+		return LocalDate.now().plusDays(getFetchDays());
+	}
+
+	/**
+	 * Events are extracted up to the horizon of the event cache, so they can
+	 * be reused on the following days.
+	 *
+	 * @return last day of events to be extracted
+	 */
+	protected LocalDate getExtractUntil() {
+		return getNeededUntil().plusDays(CalendarMailConfiguration.INSTANCE.getEventcache().getHorizon_days());
+	}
+
+	/**
+	 * Create an extractor for the events needed by the reminders.
+	 *
+	 * @param until last day of events to be extracted
+	 * @return event extractor
+	 */
+	protected EventExtractor createExtractor(LocalDate until) {
+		return new EventExtractor(LocalDate.now(), until);
+	}
+
+	/**
+	 * Get the connection to the server, create it on first use.
+	 *
+	 * @return connection to the server
+	 */
+	protected synchronized SardineTrustAlways getWebdav() {
+		if (webdav == null) {
+			webdav = new SardineTrustAlways(getUsername(), getPassword());
+		}
+		return webdav;
+	}
+
+	/**
+	 * Read the CalDAV calendar from given ressource address.
+	 *
+	 * @param previous result of the last reading or null
+	 * @return cache entry containing the events in this calencar
+	 * @throws java.io.IOException
+	 */
+	protected EventCache.Entry readEvents(EventCache.Entry previous) throws IOException {
 		if (getAddress().equals("")) {
 			throw new IOException("No address given for calendar '" + getHostname() + "'");
 		}
-		Sardine webdav = new SardineTrustAlways(getUsername(), getPassword());
+		SardineTrustAlways webdav = getWebdav();
 		// handle CalDAV directory of iCal files
 		try {
-			// get list of resources at given address
-			URI base = new URI(getAddress());
-			logger.debug("Investigating URL " + base);
-			List<DavResource> resources = webdav.list(getAddress());
-			// reformat resources to get correct URI
-			List<URI> calendars = resources.stream()
-							.filter(r -> r.getContentType().contains("calendar"))
-							.map(r -> resource2uri(base, r))
-							.collect(Collectors.toList());
-			// read the events from all calendars
-			Collection events = calendars.stream()
-							// read and parse calendar from given URI
-							.map(url -> {
-								try {
-									logger.debug("Found calendar " + url);
-									InputStream is = webdav.get(url.toString());
-									CalendarBuilder builder = new CalendarBuilder();
-									return builder.build(is);
-								} catch (IOException ex) {
-									logger.warn("Error reading address " + url + ": " + ex.getLocalizedMessage());
-								} catch (ParserException ex) {
-									logger.warn("Error parsing calendar " + url + ": " + ex.getLocalizedMessage());
-								}
-								return new Calendar();
-							})
-							// extract a list of all events
-							.map(cal -> cal.getComponents(Component.VEVENT))
-							// flatten the list of lists of events
-							.flatMap(l -> l.stream())
-							.collect(Collectors.toList());
-			logger.info("Found " + events.size() + " Events in " + calendars.size()
-							+ " Calendar files in calendar " + getHostname());
-			return events;
+			if (FETCH_QUERY.equals(getFetch_mode())) {
+				return readQuery(webdav, previous);
+			}
+			if (FETCH_SYNC.equals(getFetch_mode())) {
+				return readSync(webdav, previous);
+			}
+			return readCollection(webdav, previous);
 		} catch (IOException | URISyntaxException ex) {
 			logger.debug(ex.getLocalizedMessage());
 		}
 		// handle single iCal file
-		InputStream in_stream = webdav.get(getAddress());
-		if (in_stream != null) {
-			Collection events = new ArrayList();
+		return readFile(webdav, previous);
+	}
+
+	/**
+	 * Query the events of the reminder period from a CalDAV collection.
+	 *
+	 * The server filters the events and expands recurring events, if it
+	 * supports it. Without support of the calendar-query the complete
+	 * collection is read.
+	 *
+	 * @param webdav connection to the server
+	 * @param previous result of the last query or null
+	 * @return cache entry containing the events of the period
+	 * @throws IOException
+	 * @throws URISyntaxException
+	 */
+	protected EventCache.Entry readQuery(SardineTrustAlways webdav, EventCache.Entry previous)
+					throws IOException, URISyntaxException {
+		URI base = new URI(getAddress());
+		logger.debug("Querying URL " + base);
+		long listed = System.nanoTime();
+		List<DavResource> resources = webdav.list(getAddress(), 0, Collections.singleton(GETCTAG));
+		Metrics.latency("list", "calendar", getHostname()).since(listed);
+		String ctag = resources.stream()
+						.map(r -> r.getCustomProps().get(GETCTAG.getLocalPart()))
+						.filter(Objects::nonNull)
+						.findFirst().orElse(null);
+		if ((previous != null) && (ctag != null) && ctag.equals(previous.getTag())
+						&& previous.covers(getNeededUntil())) {
+			logger.info("Calendar " + getHostname() + " unchanged - reusing "
+							+ previous.getEvents().size() + " Events");
+			return new EventCache.Entry(previous);
+		}
+		Instant start = getFetchStart();
+		Instant end = start.plus(Duration.ofDays(getFetchDays()));
+		CalDAVReport report;
+		try {
+			report = webdav.report(getAddress(), 1, CalDAVReport.calendarQuery(start, end, true));
+		} catch (IOException ex) {
+			logger.info("Calendar " + getHostname() + " does not support calendar-query ("
+							+ ex.getLocalizedMessage() + ") - reading complete collection");
+			return readCollection(webdav, null);
+		}
+		// the result only covers the queried period
+		LocalDate until = getNeededUntil();
+		List<VEvent> events = new ArrayList<>();
+		long bytes = 0;
+		int files = 0;
+		for (CalDAVReport.Item item : report.getItems()) {
+			if (item.getData() == null) {
+				continue;
+			}
+			String url = base.resolve(item.getHref()).toString();
+			events.addAll(parseResource(url, item.getEtag(), item.getData(), until).getEvents());
+			bytes += item.getData().length();
+			files++;
+		}
+		EventCache.Entry entry = new EventCache.Entry(ctag, events, bytes, until);
+		logger.info("Found " + entry.getEvents().size() + " Events in " + files
+						+ " Calendar files of the next " + getFetchDays() + " days in calendar " + getHostname());
+		return entry;
+	}
+
+	/**
+	 * Synchronize the events of a CalDAV collection.
+	 *
+	 * Using the synchronization token of the last reading, the server only
+	 * reports the resources changed or removed since then. Without a valid
+	 * token all resources are reported; without support of the
+	 * sync-collection report the complete collection is read. The result of
+	 * such a reading carries the collection tag instead of a token, so the
+	 * next reading revalidates it by the collection tag directly.
+	 *
+	 * @param webdav connection to the server
+	 * @param previous result of the last synchronization or null
+	 * @return cache entry containing the events of the collection
+	 * @throws IOException
+	 * @throws URISyntaxException
+	 */
+	protected EventCache.Entry readSync(SardineTrustAlways webdav, EventCache.Entry previous)
+					throws IOException, URISyntaxException {
+		URI base = new URI(getAddress());
+		logger.debug("Synchronizing URL " + base);
+		if ((previous != null) && !previous.isSync()) {
+			// the server did not support sync-collection last time
+			return readCollection(webdav, previous);
+		}
+		Map<String, EventCache.Resource> known = Collections.emptyMap();
+		long listed = System.nanoTime();
+		CalDAVReport report = null;
+		if ((previous != null) && (previous.getTag() != null)) {
 			try {
-				CalendarBuilder builder = new CalendarBuilder();
-				Calendar iCal = builder.build(in_stream);
-				events = iCal.getComponents(Component.VEVENT);
+				report = webdav.report(getAddress(), 0, CalDAVReport.syncCollection(previous.getTag(), true));
+				known = previous.getResources();
+			} catch (SardineException ex) {
+				logger.info("Sync token of calendar " + getHostname() + " not accepted ("
+								+ ex.getLocalizedMessage() + ") - synchronizing again");
+			}
+		}
+		if (report == null) {
+			try {
+				report = webdav.report(getAddress(), 0, CalDAVReport.syncCollection("", true));
+			} catch (SardineException ex) {
+				logger.info("Calendar " + getHostname() + " does not support sync-collection ("
+								+ ex.getLocalizedMessage() + ") - reading complete collection");
+				return readCollection(webdav, null);
+			}
+		}
+		Metrics.latency("list", "calendar", getHostname()).since(listed);
+		// apply the changes to the known resources
+		Map<String, EventCache.Resource> current = new LinkedHashMap<>(known);
+		FetchService fetch = CalendarMailConfiguration.INSTANCE.getFetch();
+		Map<String, CompletableFuture<EventCache.Resource>> pending = new LinkedHashMap<>();
+		int changed = 0;
+		int removed = 0;
+		for (CalDAVReport.Item item : report.getItems()) {
+			if (item.getHref().endsWith("/")) {
+				continue;
+			}
+			String url = base.resolve(item.getHref()).toString();
+			String etag = item.getEtag();
+			if (item.isMissing()) {
+				if (current.remove(url) != null) {
+					removed++;
+				}
+			} else if (item.getData() != null) {
+				current.put(url, parseResource(url, etag, item.getData(), getExtractUntil()));
+				changed++;
+			} else {
+				pending.put(url, fetch.submit(base.getHost(), () -> readResource(webdav, url, etag)));
+				changed++;
+			}
+		}
+		// unchanged resources extracted for a shorter period are read again
+		for (Map.Entry<String, EventCache.Resource> resource : current.entrySet()) {
+			String url = resource.getKey();
+			String etag = resource.getValue().getEtag();
+			if (!resource.getValue().covers(getNeededUntil()) && !pending.containsKey(url)) {
+				pending.put(url, fetch.submit(base.getHost(), () -> readResource(webdav, url, etag)));
+			}
+		}
+		current.putAll(FetchService.awaitAll(pending));
+		EventCache.Entry entry = new EventCache.Entry(report.getSync_token(), current, true);
+		logger.info("Found " + entry.getEvents().size() + " Events in " + current.size()
+						+ " Calendar files in calendar " + getHostname()
+						+ " (" + changed + " changed, " + removed + " removed)");
+		return entry;
+	}
+
+	/**
+	 * Parse the calendar data of a single iCal resource.
+	 *
+	 * @param url address of the iCal resource
+	 * @param etag entity tag of the iCal resource
+	 * @param data calendar data
+	 * @param until last day the data contains events for
+	 * @return parsed resource
+	 */
+	protected EventCache.Resource parseResource(String url, String etag, String data, LocalDate until) {
+		long started = System.nanoTime();
+		try {
+			List<VEvent> events = createExtractor(until).extract(new StringReader(data));
+			Metrics.latency("parse", "calendar", getHostname()).since(started);
+			return new EventCache.Resource(etag, events, data.length(), until);
+		} catch (IOException | ParserException ex) {
+			logger.warn("Error parsing calendar " + url + ": " + ex.getLocalizedMessage());
+			Metrics.counter("calendar_failures", "calendar", getHostname()).increment();
+		}
+		return new EventCache.Resource(null, new ArrayList<>(), 0, until);
+	}
+
+	/**
+	 * Read a CalDAV collection of iCal files.
+	 *
+	 * If the collection tag is unchanged, the previous result is reused.
+	 * Otherwise only the files with changed entity tags are downloaded.
+	 *
+	 * @param webdav connection to the server
+	 * @param previous result of the last reading or null
+	 * @return cache entry containing the events of the collection
+	 * @throws IOException
+	 * @throws URISyntaxException
+	 */
+	protected EventCache.Entry readCollection(SardineTrustAlways webdav, EventCache.Entry previous)
+					throws IOException, URISyntaxException {
+		// get list of resources at given address
+		URI base = new URI(getAddress());
+		logger.debug("Investigating URL " + base);
+		long listed = System.nanoTime();
+		List<DavResource> resources = webdav.list(getAddress(), 1, Collections.singleton(GETCTAG));
+		Metrics.latency("list", "calendar", getHostname()).since(listed);
+		String ctag = resources.stream()
+						.map(r -> r.getCustomProps().get(GETCTAG.getLocalPart()))
+						.filter(Objects::nonNull)
+						.findFirst().orElse(null);
+		if ((previous != null) && (ctag != null) && ctag.equals(previous.getTag())
+						&& previous.covers(getNeededUntil())) {
+			logger.info("Calendar " + getHostname() + " unchanged - reusing "
+							+ previous.getEvents().size() + " Events");
+			return new EventCache.Entry(previous);
+		}
+		Map<String, EventCache.Resource> known = (previous != null)
+						? previous.getResources() : Collections.emptyMap();
+		// read the changed resources in parallel, reuse the others
+		FetchService fetch = CalendarMailConfiguration.INSTANCE.getFetch();
+		Map<String, CompletableFuture<EventCache.Resource>> pending = new LinkedHashMap<>();
+		int downloads = 0;
+		for (DavResource resource : resources) {
+			if (!resource.getContentType().contains("calendar")) {
+				continue;
+			}
+			// reformat resource to get correct URI
+			String url = resource2uri(base, resource).toString();
+			EventCache.Resource cached = known.get(url);
+			String etag = resource.getEtag();
+			if ((cached == null) || (etag == null) || !etag.equals(cached.getEtag())
+							|| !cached.covers(getNeededUntil())) {
+				pending.put(url, fetch.submit(base.getHost(), () -> readResource(webdav, url, etag)));
+				downloads++;
+			} else {
+				pending.put(url, CompletableFuture.completedFuture(cached));
+			}
+		}
+		Map<String, EventCache.Resource> current = FetchService.awaitAll(pending);
+		EventCache.Entry entry = new EventCache.Entry(ctag, current);
+		logger.info("Found " + entry.getEvents().size() + " Events in " + current.size()
+						+ " Calendar files in calendar " + getHostname()
+						+ " (" + downloads + " downloaded)");
+		return entry;
+	}
+
+	/**
+	 * Download and parse a single iCal file of a collection.
+	 *
+	 * @param webdav connection to the server
+	 * @param url address of the iCal file
+	 * @param etag entity tag of the iCal file
+	 * @return parsed resource
+	 */
+	protected EventCache.Resource readResource(SardineTrustAlways webdav, String url, String etag) {
+		logger.debug("Found calendar " + url);
+		LocalDate until = getExtractUntil();
+		long started = System.nanoTime();
+		try (TimedInputStream is = new TimedInputStream(webdav.get(url))) {
+			long opened = System.nanoTime();
+			List<VEvent> events = createExtractor(until).extract(is);
+			recordDownload(started, opened, is);
+			return new EventCache.Resource(etag, events, is.getByteCount(), until);
+		} catch (IOException ex) {
+			logger.warn("Error reading address " + url + ": " + ex.getLocalizedMessage());
+			Metrics.counter("calendar_failures", "calendar", getHostname()).increment();
+		} catch (ParserException ex) {
+			logger.warn("Error parsing calendar " + url + ": " + ex.getLocalizedMessage());
+			Metrics.counter("calendar_failures", "calendar", getHostname()).increment();
+		}
+		// without entity tag the resource is read again next time
+		return new EventCache.Resource(null, new ArrayList<>(), 0, until);
+	}
+
+	/**
+	 * Read a single iCal file.
+	 *
+	 * The file is only downloaded, if its entity tag changed.
+	 *
+	 * @param webdav connection to the server
+	 * @param previous result of the last reading or null
+	 * @return cache entry containing the events of the file
+	 * @throws IOException
+	 */
+	protected EventCache.Entry readFile(SardineTrustAlways webdav, EventCache.Entry previous)
+					throws IOException {
+		String known_tag = ((previous != null) && previous.covers(getNeededUntil()))
+						? previous.getTag() : null;
+		long started = System.nanoTime();
+		HttpResponse response = webdav.getIfNoneMatch(getAddress(), known_tag);
+		try {
+			int status = response.getStatusLine().getStatusCode();
+			if (status == HttpStatus.SC_NOT_MODIFIED) {
+				logger.info("iCal file of calendar " + getHostname() + " unchanged - reusing "
+								+ previous.getEvents().size() + " entries");
+				return new EventCache.Entry(previous);
+			}
+			if ((status >= HttpStatus.SC_MULTIPLE_CHOICES) || (response.getEntity() == null)) {
+				throw new IOException("Could not get valid calendar information for calendar "
+								+ getHostname() + ": " + response.getStatusLine());
+			}
+			Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+			List<VEvent> events = new ArrayList<>();
+			long bytes = 0;
+			LocalDate until = getExtractUntil();
+			try (TimedInputStream counting = new TimedInputStream(response.getEntity().getContent())) {
+				long opened = System.nanoTime();
+				events = createExtractor(until).extract(counting);
+				bytes = counting.getByteCount();
+				recordDownload(started, opened, counting);
 			} catch (ParserException ex) {
 				logger.warn("Unable to parse calendar file at " + getAddress());
 				logger.warn(ex.getLocalizedMessage());
+				Metrics.counter("calendar_failures", "calendar", getHostname()).increment();
+				etag = null;
 			}
 			logger.info("Found iCal file with " + events.size()
 							+ " entries for calendar " + getHostname());
-			return events;
+			return new EventCache.Entry((etag != null) ? etag.getValue() : null, events, bytes, until);
+		} finally {
+			EntityUtils.consumeQuietly(response.getEntity());
 		}
-		logger.warn("Could not get valid calendar information for calendar "
-						+ getHostname());
-		return new ArrayList();
+	}
+
+	/**
+	 * Record the metrics of a resource parsed while it was downloaded.
+	 *
+	 * @param started start of the request
+	 * @param opened time the response was received
+	 * @param is stream of the parsed response
+	 */
+	protected void recordDownload(long started, long opened, TimedInputStream is) {
+		long download = (opened - started) + is.getRead_nanos();
+		Metrics.latency("download", "calendar", getHostname()).record(download);
+		Metrics.latency("parse", "calendar", getHostname()).record(System.nanoTime() - started - download);
+		Metrics.counter("download_bytes", "calendar", getHostname()).add(is.getByteCount());
 	}
 
 	/**
@@ -127,11 +565,11 @@ public class RemoteCalendar {
 	 * @param events_ list of calendar events
 	 * @return textual representation
 	 */
-	public static String eventlist_to_string(Collection events_) {
-		return events_.stream()
-						.map(ev -> event_to_string((VEvent) ev))
-						.collect(Collectors.joining("\n"))
-						.toString();
+	public static String eventlist_to_string(Collection<? extends VEvent> events_) {
+		EventRenderer renderer = EventRenderer.get();
+		StringBuilder builder = renderer.buffer();
+		renderer.render(events_, builder);
+		return builder.toString();
 	}
 
 	/**
@@ -141,30 +579,9 @@ public class RemoteCalendar {
 	 * @return string representation of event
 	 */
 	public static String event_to_string(VEvent event) {
-		StringBuilder builder = new StringBuilder();
-		// Event time
-		DtStart start = event.getStartDate();
-		if (start != null) {
-			Instant startDate = start.getDate().toInstant();
-			LocalDateTime startLocal = LocalDateTime.ofInstant(startDate, ZoneId.systemDefault());
-			builder.append(startLocal.format(DATE_FORMAT));
-			logger.debug("Start: " + startLocal.format(DATE_FORMAT));
-			DtEnd ending = event.getEndDate(true);
-			if (ending != null) {
-				LocalDateTime endLocal = LocalDateTime
-								.ofInstant(ending.getDate().toInstant(), ZoneId.systemDefault());
-				builder.append(" - ").append(endLocal.format(DATE_FORMAT));
-			}
-			builder.append("\n");
-		}
-		// event title
-		builder.append(event.getProperty(Property.SUMMARY).getValue()).append("\n");
-		// event location
-		Location loc = event.getLocation();
-		if (loc != null) {
-			builder.append("Ort: ").append(loc.getValue()).append("\n");
-			logger.debug("Location: " + loc.getValue());
-		}
+		EventRenderer renderer = EventRenderer.get();
+		StringBuilder builder = renderer.buffer();
+		renderer.render(event, builder);
 		return builder.toString();
 	}
 
@@ -172,32 +589,92 @@ public class RemoteCalendar {
 	 * Static method to filter all given calendars for events and generate a
 	 * string representation.
 	 *
+	 * The calendars are read concurrently; calendars not answering within
+	 * their timeout are skipped. The events of the period are taken from the
+	 * index of each calendar and merged in chronological order.
+	 *
 	 * @param calendars calendars to be combined and filtered
-	 * @param filter_ filter for events
-	 * @return a collection of all filtered events
-	 */
-	public static Collection filterAll(List<RemoteCalendar> calendars, Filter filter_) {
-		// collect events of all calendars and sort them chronologically
-		Collection events = (Collection) calendars.stream()
-						.map(c -> {
-							try {
-								return c.getEvents();
-							} catch (IOException ex) {
-								logger.warn(ex.getLocalizedMessage());
-								return new ArrayList<VEvent>();
-							}
-						})
-						.flatMap(l -> l.stream())
-						.sorted(new EventComparator())
+	 * @param period period of the events
+	 * @return all events of the period in chronological order
+	 */
+	public static List<VEvent> filterAll(List<RemoteCalendar> calendars, Period period) {
+		return filterIndexes(readAll(calendars), period);
+	}
+
+	/**
+	 * Get the events of a period from calendars already read.
+	 *
+	 * @param indexes indexes of the events of the calendars
+	 * @param period period of the events
+	 * @return all events of the period in chronological order
+	 */
+	public static List<VEvent> filterIndexes(List<EventIndex> indexes, Period period) {
+		// merge the sorted events of the period of all calendars chronologically
+		List<List<VEvent>> sorted = indexes.stream()
+						.map(index -> index.query(period))
 						.collect(Collectors.toList());
-		// filter the events using the given filter
-		Collection filtered_events;
-		if (filter_ != null) {
-			filtered_events = filter_.filter(events);
-		} else {
-			filtered_events = events;
+		List<VEvent> events = new ArrayList<>(sorted.stream().mapToInt(List::size).sum());
+		new EventMerge(sorted).forEachRemaining(events::add);
+		return events;
+	}
+
+	/**
+	 * Read the given calendars concurrently.
+	 *
+	 * Calendars not answering within their timeout are skipped and their
+	 * reading is cancelled.
+	 *
+	 * @param calendars calendars to be read
+	 * @return indexes of the events of the calendars in the same order
+	 */
+	public static List<EventIndex> readAll(List<RemoteCalendar> calendars) {
+		FetchService fetch = CalendarMailConfiguration.INSTANCE.getFetch();
+		long started = System.currentTimeMillis();
+		Map<RemoteCalendar, CompletableFuture<EventIndex>> pending = new LinkedHashMap<>();
+		calendars.forEach(c -> pending.put(c, fetch.read(() -> {
+			try {
+				return c.getEntry().getIndex();
+			} catch (InterruptedIOException ex) {
+				logger.debug("Reading calendar " + c.getHostname() + " cancelled");
+				return EventIndex.EMPTY;
+			} catch (IOException ex) {
+				logger.warn(ex.getLocalizedMessage());
+				Metrics.counter("calendar_failures", "calendar", c.getHostname()).increment();
+				return EventIndex.EMPTY;
+			}
+		})));
+		return pending.entrySet().stream()
+						.map(e -> e.getKey().awaitEvents(e.getValue(), started))
+						.collect(Collectors.toList());
+	}
+
+	/**
+	 * Wait for the events of this calendar read concurrently.
+	 *
+	 * @param events future index of the events of this calendar
+	 * @param started time in milliseconds the reading was started
+	 * @return the index of the read events or an empty index on timeout or
+	 * failure
+	 */
+	protected EventIndex awaitEvents(CompletableFuture<EventIndex> events, long started) {
+		long remaining = started + getTimeout().toMillis() - System.currentTimeMillis();
+		try {
+			return events.get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException ex) {
+			// stop the reading, so it frees its connections and thread
+			events.cancel(true);
+			logger.warn("Calendar " + getHostname() + " did not answer within " + getTimeout()
+							+ " - skipped");
+		} catch (ExecutionException ex) {
+			Throwable internal = ex.getCause();
+			logger.warn("Reading calendar " + getHostname() + " failed: "
+							+ internal.getClass().getSimpleName() + ": " + internal.getLocalizedMessage());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			logger.warn("Reading calendar " + getHostname() + " interrupted");
 		}
-		return filtered_events;
+		Metrics.counter("calendar_failures", "calendar", getHostname()).increment();
+		return EventIndex.EMPTY;
 	}
 
 	/**
@@ -238,7 +715,8 @@ public class RemoteCalendar {
 	/**
 	 * @param username the username to set
 	 */
-	public void setUsername(String username) {
+	public synchronized void setUsername(String username) {
+		this.webdav = null;
 		this.username = username;
 	}
 
@@ -252,15 +730,61 @@ public class RemoteCalendar {
 	/**
 	 * @param password the password to set
 	 */
-	public void setPassword(String password) throws NoSuchElementException, MailExceptionWrapper {
+	public synchronized void setPassword(String password) throws NoSuchElementException, MailExceptionWrapper {
+		this.webdav = null;
 		try {
 			// Decrypt if encrypted
-			Encryption encryption = new Encryption();
-			this.password = encryption.check_decrypt(password);
+			this.password = Encryption.check_decrypt(password);
 		} catch (GeneralSecurityException ex) {
 			throw new MailExceptionWrapper(ex);
 		}
-		this.password = password;
+	}
+
+	/**
+	 * @return the cache_ttl
+	 */
+	public Duration getCache_ttl() {
+		return cache_ttl;
+	}
+
+	/**
+	 * @param cache_ttl the cache_ttl to set
+	 */
+	public void setCache_ttl(Duration cache_ttl) {
+		this.cache_ttl = cache_ttl;
+	}
+
+	/**
+	 * @return the fetch_mode
+	 */
+	public String getFetch_mode() {
+		return fetch_mode;
+	}
+
+	/**
+	 * @param fetch_mode the fetch_mode to set
+	 */
+	public void setFetch_mode(String fetch_mode) {
+		if (!FETCH_LIST.equals(fetch_mode) && !FETCH_QUERY.equals(fetch_mode)
+						&& !FETCH_SYNC.equals(fetch_mode)) {
+			logger.warn("Unknown fetch mode '" + fetch_mode + "' - using '" + FETCH_LIST + "'");
+			fetch_mode = FETCH_LIST;
+		}
+		this.fetch_mode = fetch_mode;
+	}
+
+	/**
+	 * @return the timeout
+	 */
+	public Duration getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @param timeout the timeout to set
+	 */
+	public void setTimeout(Duration timeout) {
+		this.timeout = timeout;
 	}
 
 }
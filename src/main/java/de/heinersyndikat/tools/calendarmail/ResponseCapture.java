@@ -0,0 +1,263 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicLineParser;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recording and replay of the responses of the WebDAV servers.
+ *
+ * In record mode every response is stored in a file of the capture
+ * directory, named by a hash of the request: the request line, the status
+ * line and the headers as text followed by the body. Conditional requests
+ * are sent without their entity tag, so that the complete resource is
+ * recorded; the caller still gets the status 304 if its entity tag matches.
+ *
+ * In replay mode the recorded responses are served instead of contacting
+ * the servers, so a run can be reproduced offline. The time range of a
+ * calendar-query and the token of a sync-collection report are not part of
+ * the request hash, so a recording can be replayed on later days and after
+ * the cache got a new synchronization token.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class ResponseCapture {
+
+	/**
+	 * Logger instance
+	 */
+	private static transient final Logger logger
+					= LoggerFactory.getLogger(Thread.currentThread().getStackTrace()[1].getClassName());
+
+	/**
+	 * Recording or replaying.
+	 */
+	public enum Mode {
+		RECORD, REPLAY
+	}
+
+	/**
+	 * Sending of a request to the server.
+	 */
+	public interface Exchange {
+
+		HttpResponse execute(HttpRequestBase request) throws IOException;
+	}
+
+	/**
+	 * response headers not valid for the recorded body
+	 */
+	protected static final List<String> HOP_HEADERS = Arrays.asList(HttpHeaders.CONNECTION,
+					HttpHeaders.CONTENT_LENGTH, HttpHeaders.TRANSFER_ENCODING, "Keep-Alive");
+
+	/**
+	 * parts of report bodies changing from run to run
+	 */
+	protected static final Pattern TIME_RANGE = Pattern.compile("\\b(start|end)=\"[^\"]*\"");
+	protected static final Pattern SYNC_TOKEN = Pattern.compile("<D:sync-token>[^<]*</D:sync-token>");
+
+	private final Mode mode;
+	private final Path directory;
+
+	/**
+	 * @param mode record or replay
+	 * @param directory directory of the recorded responses
+	 */
+	public ResponseCapture(Mode mode, Path directory) {
+		this.mode = mode;
+		this.directory = directory;
+	}
+
+	/**
+	 * Answer a request by the server or from the recording.
+	 *
+	 * @param request request to answer
+	 * @param server sending of the request to the server
+	 * @return response with a buffered entity
+	 * @throws IOException if the server fails or no response is recorded
+	 */
+	public HttpResponse exchange(HttpRequestBase request, Exchange server) throws IOException {
+		Header if_none_match = request.getFirstHeader(HttpHeaders.IF_NONE_MATCH);
+		String etag = (if_none_match != null) ? if_none_match.getValue() : null;
+		Path file = directory.resolve(key(request) + ".http");
+		byte[] recorded;
+		if (mode == Mode.REPLAY) {
+			try {
+				recorded = Files.readAllBytes(file);
+			} catch (NoSuchFileException ex) {
+				throw new IOException("No recorded response for " + request.getRequestLine());
+			}
+			logger.debug("Replaying " + request.getRequestLine() + " from " + file);
+		} else {
+			request.removeHeaders(HttpHeaders.IF_NONE_MATCH);
+			HttpResponse response = server.execute(request);
+			try {
+				recorded = encode(request, response);
+			} finally {
+				EntityUtils.consumeQuietly(response.getEntity());
+			}
+			write(file, recorded);
+			logger.debug("Recorded " + request.getRequestLine() + " to " + file);
+		}
+		return decode(recorded, etag);
+	}
+
+	/**
+	 * Identify a request by its method, address, depth and body.
+	 *
+	 * The time range and the synchronization token are removed from the
+	 * body, so a recorded report matches the same report of another run.
+	 *
+	 * @param request request to identify
+	 * @return hexadecimal SHA-256 hash
+	 * @throws IOException
+	 */
+	protected static String key(HttpRequestBase request) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			Header depth = request.getFirstHeader("Depth");
+			digest.update((request.getMethod() + " " + request.getURI() + "\n"
+							+ ((depth != null) ? depth.getValue() : "") + "\n").getBytes(StandardCharsets.UTF_8));
+			if (request instanceof HttpEntityEnclosingRequest) {
+				HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+				HttpEntity entity = enclosing.getEntity();
+				if (entity != null) {
+					if (!entity.isRepeatable()) {
+						entity = new BufferedHttpEntity(entity);
+						enclosing.setEntity(entity);
+					}
+					digest.update(normalize(EntityUtils.toByteArray(entity)));
+				}
+			}
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest()) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Remove the time range and the synchronization token of a report body.
+	 *
+	 * @param body request body
+	 * @return body without the parts changing from run to run
+	 */
+	protected static byte[] normalize(byte[] body) {
+		String text = new String(body, StandardCharsets.UTF_8);
+		text = TIME_RANGE.matcher(text).replaceAll("$1=\"\"");
+		text = SYNC_TOKEN.matcher(text).replaceAll("<D:sync-token/>");
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Encode a response as request line, status line, headers and body.
+	 *
+	 * @return encoded response
+	 * @throws IOException
+	 */
+	protected static byte[] encode(HttpRequestBase request, HttpResponse response) throws IOException {
+		StringBuilder head = new StringBuilder();
+		head.append(request.getMethod()).append(' ').append(request.getURI()).append('\n');
+		head.append(response.getStatusLine()).append('\n');
+		for (Header header : response.getAllHeaders()) {
+			if (HOP_HEADERS.stream().noneMatch(header.getName()::equalsIgnoreCase)) {
+				head.append(header.getName()).append(": ").append(header.getValue()).append('\n');
+			}
+		}
+		head.append('\n');
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(head.toString().getBytes(StandardCharsets.UTF_8));
+		if (response.getEntity() != null) {
+			out.write(EntityUtils.toByteArray(response.getEntity()));
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decode a recorded response.
+	 *
+	 * @param recorded encoded response
+	 * @param etag entity tag of a conditional request or null
+	 * @return decoded response; status 304 if the entity tag matches
+	 */
+	protected static HttpResponse decode(byte[] recorded, String etag) {
+		int end = 0;
+		while ((end + 1 < recorded.length) && !((recorded[end] == '\n') && (recorded[end + 1] == '\n'))) {
+			end++;
+		}
+		String[] lines = new String(recorded, 0, end, StandardCharsets.UTF_8).split("\n");
+		BasicHttpResponse response = new BasicHttpResponse(BasicLineParser.parseStatusLine(lines[1], null));
+		for (int i = 2; i < lines.length; i++) {
+			response.addHeader(BasicLineParser.parseHeader(lines[i], null));
+		}
+		Header recorded_etag = response.getFirstHeader(HttpHeaders.ETAG);
+		if ((etag != null) && (recorded_etag != null) && etag.equals(recorded_etag.getValue())
+						&& (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK)) {
+			BasicHttpResponse unchanged = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+							HttpStatus.SC_NOT_MODIFIED, "Not Modified");
+			unchanged.addHeader(recorded_etag);
+			return unchanged;
+		}
+		ByteArrayEntity entity = new ByteArrayEntity(
+						Arrays.copyOfRange(recorded, Math.min(end + 2, recorded.length), recorded.length));
+		entity.setContentType(response.getFirstHeader(HttpHeaders.CONTENT_TYPE));
+		response.setEntity(entity);
+		return response;
+	}
+
+	/**
+	 * Write a recorded response atomically.
+	 */
+	protected void write(Path file, byte[] recorded) throws IOException {
+		Files.createDirectories(directory);
+		Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+		try {
+			Files.write(temp, recorded);
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * @return the mode
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return the directory
+	 */
+	public Path getDirectory() {
+		return directory;
+	}
+
+}
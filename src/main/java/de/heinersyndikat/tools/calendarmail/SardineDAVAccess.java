@@ -60,6 +60,8 @@ public class SardineDAVAccess {
 
 	/**
 	 * Read the data from the given address
+	 *
+	 * The returned stream has to be closed to release the connection.
 	 * 
 	 * @param uri_ address to read from
 	 * @return InputStream of the data at the given address
@@ -83,8 +85,7 @@ public class SardineDAVAccess {
 			Collection events = new ArrayList();
 			for (URI calendar : calendars) {
 				logger.info("Found calendar " + calendar);
-				try {
-					InputStream is = connection.get(calendar.toString());
+				try (InputStream is = connection.get(calendar.toString())) {
 					CalendarBuilder builder = new CalendarBuilder();
 					Calendar iCal = builder.build(is);
 					events.addAll(iCal.getComponents(Component.VEVENT));
@@ -110,7 +111,7 @@ public class SardineDAVAccess {
 	 */
 	static public URI resource2uri(URI base, DavResource res) {
 		try {
-			return new URI(base.getScheme(), base.getHost(), res.getPath(), null);
+			return new URI(base.getScheme(), null, base.getHost(), base.getPort(), res.getPath(), null, null);
 		} catch (URISyntaxException ex) {
 			throw new RuntimeException(ex);
 		}
@@ -1,11 +1,33 @@
 package de.heinersyndikat.tools.calendarmail;
 
+import com.github.sardine.impl.SardineException;
 import com.github.sardine.impl.SardineImpl;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProxySelector;
+import java.net.URI;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
+import java.util.Optional;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.config.Registry;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.ssl.TrustStrategy;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.security.cert.CertificateException;
@@ -22,7 +44,7 @@ public class SardineTrustAlways extends SardineImpl {
 	/**
 	 * TrustStrategy to trust all certificates.
 	 */
-	private class TrustAnyTrustStrategy implements TrustStrategy {
+	private static class TrustAnyTrustStrategy implements TrustStrategy {
 
 		/**
 		 * @return Returns <tt>true</tt> always
@@ -40,6 +62,19 @@ public class SardineTrustAlways extends SardineImpl {
 	private static transient final Logger logger
 					= LoggerFactory.getLogger(Thread.currentThread().getStackTrace()[1].getClassName());
 
+	/**
+	 * connections kept alive and shared by all instances
+	 */
+	private static PoolingHttpClientConnectionManager shared_connections = null;
+	/**
+	 * SSL socket factory shared by all instances, so TLS sessions are reused
+	 */
+	private static SSLSocketFactory shared_ssl = null;
+	/**
+	 * idle time in milliseconds, after which a kept connection is checked
+	 */
+	protected static final int VALIDATE_AFTER_INACTIVITY = 2000;
+
 	SardineTrustAlways(String username_, String password_) {
 		super(username_, password_);
 	}
@@ -48,18 +83,141 @@ public class SardineTrustAlways extends SardineImpl {
 		super();
 	}
 
+	/**
+	 * Read a resource, if it differs from the known version.
+	 *
+	 * The entity of the response has to be consumed by the caller.
+	 *
+	 * @param url address of the resource
+	 * @param etag entity tag of the known version or null
+	 * @return response of the server; status 304 if the resource is unchanged
+	 * @throws IOException
+	 */
+	public HttpResponse getIfNoneMatch(String url, String etag) throws IOException {
+		HttpGet get = new HttpGet(url);
+		if (etag != null) {
+			get.addHeader(HttpHeaders.IF_NONE_MATCH, etag);
+		}
+		return execute(get);
+	}
+
+	/**
+	 * Send a REPORT request.
+	 *
+	 * @param url address of the collection
+	 * @param depth depth of the request
+	 * @param body XML request body
+	 * @return parsed multistatus response
+	 * @throws IOException if the request fails or is not supported
+	 */
+	public CalDAVReport report(String url, int depth, String body) throws IOException {
+		HttpEntityEnclosingRequestBase report = new HttpEntityEnclosingRequestBase() {
+			@Override
+			public String getMethod() {
+				return "REPORT";
+			}
+		};
+		report.setURI(URI.create(url));
+		report.setHeader("Depth", Integer.toString(depth));
+		report.setEntity(new StringEntity(body, ContentType.create("text/xml", "UTF-8")));
+		return execute(report, response -> {
+			int status = response.getStatusLine().getStatusCode();
+			if (status != HttpStatus.SC_MULTI_STATUS) {
+				EntityUtils.consumeQuietly(response.getEntity());
+				throw new SardineException("Unexpected response", status,
+								response.getStatusLine().getReasonPhrase());
+			}
+			try (InputStream is = response.getEntity().getContent()) {
+				return CalDAVReport.parse(is);
+			}
+		});
+	}
+
+	/**
+	 * Record or replay the response, if configured.
+	 */
 	@Override
-	protected SSLSocketFactory createDefaultSecureSocketFactory() {
-		SSLSocketFactory sslSf = null;
+	protected <T> T execute(HttpRequestBase request, ResponseHandler<T> responseHandler) throws IOException {
+		if (!CalendarMailConfiguration.INSTANCE.getCapture().isPresent()) {
+			return super.execute(request, responseHandler);
+		}
+		HttpResponse response = execute(request);
 		try {
-			TrustStrategy sslTs = new TrustAnyTrustStrategy();
-			sslSf = new SSLSocketFactory(sslTs,
-							SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
-		} catch (NoSuchAlgorithmException | KeyManagementException | KeyStoreException | UnrecoverableKeyException e) {
-			throw new RuntimeException(
-							"Unable to construct HttpClientProvider.", e);
+			return responseHandler.handleResponse(response);
+		} finally {
+			EntityUtils.consumeQuietly(response.getEntity());
+		}
+	}
+
+	/**
+	 * Record or replay the response, if configured.
+	 */
+	@Override
+	protected HttpResponse execute(HttpRequestBase request) throws IOException {
+		Optional<ResponseCapture> capture = CalendarMailConfiguration.INSTANCE.getCapture();
+		if (!capture.isPresent()) {
+			return super.execute(request);
+		}
+		return capture.get().exchange(request, super::execute);
+	}
+
+	/**
+	 * Use the connections shared by all instances.
+	 *
+	 * Allow as many connections per host as parallel downloads are configured.
+	 */
+	@Override
+	protected HttpClientConnectionManager createDefaultConnectionManager(Registry<ConnectionSocketFactory> schemeRegistry) {
+		synchronized (SardineTrustAlways.class) {
+			if (shared_connections == null) {
+				FetchService fetch = CalendarMailConfiguration.INSTANCE.getFetch();
+				int connections = Math.max(1, fetch.getConnections_per_host());
+				shared_connections = new PoolingHttpClientConnectionManager(schemeRegistry);
+				shared_connections.setDefaultMaxPerRoute(connections);
+				shared_connections.setMaxTotal(Math.max(shared_connections.getMaxTotal(),
+								2 * Math.max(connections, fetch.getThreads())));
+				shared_connections.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+				logger.debug("Created connection pool with " + connections + " connections per host");
+			}
+			return shared_connections;
+		}
+	}
+
+	/**
+	 * Keep the shared connections open, when this instance is shut down.
+	 */
+	@Override
+	protected HttpClientBuilder configure(ProxySelector selector, CredentialsProvider credentials) {
+		return super.configure(selector, credentials).setConnectionManagerShared(true);
+	}
+
+	@Override
+	protected SSLSocketFactory createDefaultSecureSocketFactory() {
+		synchronized (SardineTrustAlways.class) {
+			if (shared_ssl == null) {
+				try {
+					TrustStrategy sslTs = new TrustAnyTrustStrategy();
+					shared_ssl = new SSLSocketFactory(sslTs,
+									SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+				} catch (NoSuchAlgorithmException | KeyManagementException | KeyStoreException | UnrecoverableKeyException e) {
+					throw new RuntimeException(
+									"Unable to construct HttpClientProvider.", e);
+				}
+			}
+			return shared_ssl;
+		}
+	}
+
+	/**
+	 * Close all shared connections.
+	 */
+	public static void closeConnections() {
+		synchronized (SardineTrustAlways.class) {
+			if (shared_connections != null) {
+				shared_connections.shutdown();
+				shared_connections = null;
+			}
 		}
-		return sslSf;
 	}
 
 }
@@ -0,0 +1,44 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.io.InputStream;
+import org.apache.commons.io.input.CountingInputStream;
+
+/**
+ * Input stream counting the bytes and the time spent waiting for them.
+ *
+ * If the data is parsed while it is read, the waiting time is the time of
+ * the download and the remaining time is the time of the parsing.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class TimedInputStream extends CountingInputStream {
+
+	private long read_nanos = 0;
+	private long read_started = 0;
+
+	/**
+	 * @param in stream to be read
+	 */
+	public TimedInputStream(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	protected synchronized void beforeRead(int n) {
+		read_started = System.nanoTime();
+	}
+
+	@Override
+	protected synchronized void afterRead(int n) {
+		read_nanos += System.nanoTime() - read_started;
+		super.afterRead(n);
+	}
+
+	/**
+	 * @return the nanoseconds spent in reading
+	 */
+	public synchronized long getRead_nanos() {
+		return read_nanos;
+	}
+
+}
@@ -0,0 +1,83 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import com.sun.mail.smtp.SMTPTransport;
+import java.io.OutputStream;
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Provider;
+import javax.mail.Session;
+import javax.mail.URLName;
+
+/**
+ * SMTP transport recording whether the message data has been sent.
+ *
+ * Once the DATA command is issued, the server may accept the message even if
+ * the connection fails afterwards, e.g. by a timeout while waiting for the
+ * final response. Such a message must not be sent again automatically.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class TrackedSMTPTransport extends SMTPTransport {
+
+	private boolean data_sent = false;
+
+	/**
+	 * Transport for the protocol smtp.
+	 *
+	 * @param session session of the transport
+	 * @param urlname address of the server
+	 */
+	public TrackedSMTPTransport(Session session, URLName urlname) {
+		this(session, urlname, "smtp", 25, false);
+	}
+
+	protected TrackedSMTPTransport(Session session, URLName urlname, String name, int port, boolean ssl) {
+		super(session, urlname, name, port, ssl);
+	}
+
+	/**
+	 * Transport for the protocol smtps.
+	 */
+	public static class SSL extends TrackedSMTPTransport {
+
+		/**
+		 * @param session session of the transport
+		 * @param urlname address of the server
+		 */
+		public SSL(Session session, URLName urlname) {
+			super(session, urlname, "smtps", 465, true);
+		}
+	}
+
+	/**
+	 * @param protocol smtp or smtps
+	 * @return provider of the tracked transport for the protocol
+	 */
+	public static Provider provider(String protocol) {
+		String implementation = "smtps".equals(protocol)
+						? SSL.class.getName() : TrackedSMTPTransport.class.getName();
+		return new Provider(Provider.Type.TRANSPORT, protocol, implementation, "calendarmail", null);
+	}
+
+	@Override
+	public synchronized void sendMessage(Message message, Address[] addresses)
+					throws MessagingException {
+		data_sent = false;
+		super.sendMessage(message, addresses);
+	}
+
+	@Override
+	protected OutputStream data() throws MessagingException {
+		data_sent = true;
+		return super.data();
+	}
+
+	/**
+	 * @return true, if the last message may have reached the server
+	 */
+	public synchronized boolean isData_sent() {
+		return data_sent;
+	}
+
+}
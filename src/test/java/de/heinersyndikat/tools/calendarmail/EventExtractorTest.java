@@ -0,0 +1,121 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.io.StringReader;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.component.VEvent;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the streaming extraction of events.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class EventExtractorTest {
+
+	private static final String CALENDAR = String.join("\r\n",
+					"BEGIN:VCALENDAR",
+					"VERSION:2.0",
+					"PRODID:-//calendarmail//test//EN",
+					"BEGIN:VTIMEZONE",
+					"TZID:Test/Zone",
+					"BEGIN:STANDARD",
+					"DTSTART:19700101T000000",
+					"TZOFFSETFROM:+0200",
+					"TZOFFSETTO:+0200",
+					"TZNAME:TST",
+					"END:STANDARD",
+					"END:VTIMEZONE",
+					event("inside", "DTSTART:20261021T100000Z", "DTEND:20261021T110000Z",
+									"DESCRIPTION:dropped", "BEGIN:VALARM", "TRIGGER:-PT15M", "ACTION:DISPLAY",
+									"DESCRIPTION:alarm", "END:VALARM"),
+					event("margin-before", "DTSTART:20261018T100000Z", "DTEND:20261019T080000Z"),
+					event("before", "DTSTART:20261017T100000Z", "DTEND:20261018T110000Z"),
+					event("margin-after", "DTSTART:20261023T100000Z", "DTEND:20261023T110000Z"),
+					event("after", "DTSTART:20261024T000000Z", "DTEND:20261024T010000Z"),
+					event("all-day", "DTSTART;VALUE=DATE:20261020", "DTEND;VALUE=DATE:20261021"),
+					event("all-day-before", "DTSTART;VALUE=DATE:20261016", "DTEND;VALUE=DATE:20261017"),
+					event("floating", "DTSTART:20261021T090000", "DTEND:20261021T100000"),
+					event("zoned", "DTSTART;TZID=Test/Zone:20261021T090000",
+									"DTEND;TZID=Test/Zone:20261021T100000"),
+					event("long-duration", "DTSTART:20261018T100000Z", "DURATION:P2D"),
+					event("short-duration", "DTSTART:20261017T100000Z", "DURATION:PT1H"),
+					event("recurring-ended", "DTSTART:20260901T100000Z", "DTEND:20260901T110000Z",
+									"RRULE:FREQ=DAILY;UNTIL=20261001T000000Z"),
+					event("recurring", "DTSTART:20250101T100000Z", "DTEND:20250101T110000Z", "RRULE:FREQ=WEEKLY"),
+					event("changed", "DTSTART:20250108T120000Z", "DTEND:20250108T130000Z",
+									"RECURRENCE-ID:20250108T100000Z"),
+					"END:VCALENDAR", "");
+
+	private static EventExtractor extractor;
+	private static Map<String, VEvent> extracted;
+
+	private static String event(String summary, String... properties) {
+		return String.join("\r\n", "BEGIN:VEVENT", "UID:" + summary + "@test", "SUMMARY:" + summary,
+						String.join("\r\n", properties), "END:VEVENT");
+	}
+
+	@BeforeClass
+	public static void extract() throws Exception {
+		extractor = new EventExtractor(LocalDate.of(2026, 10, 20), LocalDate.of(2026, 10, 22));
+		List<VEvent> events = extractor.extract(new StringReader(CALENDAR));
+		extracted = events.stream().collect(Collectors.toMap(ev -> ev.getSummary().getValue(),
+						Function.identity()));
+	}
+
+	@Test
+	public void eventsOutsideThePeriodAndItsMarginAreRejected() {
+		assertEquals(new HashSet<>(Arrays.asList("inside", "margin-before", "margin-after", "all-day",
+						"floating", "zoned", "long-duration", "recurring", "changed")), extracted.keySet());
+		assertEquals(5, extractor.getRejected());
+	}
+
+	@Test
+	public void onlyKeptPropertiesAreExtracted() {
+		VEvent inside = extracted.get("inside");
+		assertNull(inside.getProperty(Property.DESCRIPTION));
+		assertTrue(inside.getAlarms().isEmpty());
+		assertEquals("inside@test", inside.getUid().getValue());
+		assertNotNull(extracted.get("recurring").getProperty(Property.RRULE));
+		assertNotNull(extracted.get("changed").getRecurrenceId());
+	}
+
+	@Test
+	public void allDayEventsKeepTheirDates() {
+		VEvent allday = extracted.get("all-day");
+		assertFalse(allday.getStartDate().getDate() instanceof DateTime);
+		assertEquals("20261020", allday.getStartDate().getValue());
+		assertEquals("20261021", allday.getEndDate().getValue());
+	}
+
+	@Test
+	public void floatingEventsHaveNoTimeZone() {
+		DateTime start = (DateTime) extracted.get("floating").getStartDate().getDate();
+		assertFalse(start.isUtc());
+		assertNull(start.getTimeZone());
+		assertEquals("20261021T090000", start.toString());
+	}
+
+	@Test
+	public void timeZonesOfTheCalendarAreApplied() throws Exception {
+		DateTime start = (DateTime) extracted.get("zoned").getStartDate().getDate();
+		assertNotNull(start.getTimeZone());
+		assertEquals("Test/Zone", start.getTimeZone().getID());
+		assertEquals(new DateTime("20261021T070000Z").getTime(), start.getTime());
+	}
+
+}
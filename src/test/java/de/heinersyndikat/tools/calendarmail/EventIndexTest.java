@@ -0,0 +1,158 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import net.fortuna.ical4j.model.Date;
+import net.fortuna.ical4j.model.DateList;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Period;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.parameter.Value;
+import net.fortuna.ical4j.model.property.ExDate;
+import net.fortuna.ical4j.model.property.RRule;
+import net.fortuna.ical4j.model.property.RecurrenceId;
+import net.fortuna.ical4j.model.property.Uid;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the event index.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class EventIndexTest {
+
+	private static final Period HORIZON = period("20261001T000000Z", "20261201T000000Z");
+
+	private static DateTime time(String value) {
+		try {
+			return new DateTime(value);
+		} catch (ParseException ex) {
+			throw new IllegalArgumentException(ex);
+		}
+	}
+
+	private static Period period(String start, String end) {
+		return new Period(time(start), time(end));
+	}
+
+	private static VEvent event(String start, String end, String summary) {
+		return (end != null) ? new VEvent(time(start), time(end), summary) : new VEvent(time(start), summary);
+	}
+
+	private static List<String> summaries(List<VEvent> events) {
+		return events.stream().map(ev -> ev.getSummary().getValue()).collect(Collectors.toList());
+	}
+
+	private static VEvent daily(String uid) throws ParseException {
+		VEvent master = event("20261019T100000Z", "20261019T110000Z", "daily");
+		master.getProperties().add(new Uid(uid));
+		master.getProperties().add(new RRule("FREQ=DAILY;COUNT=5"));
+		return master;
+	}
+
+	@Test
+	public void queryIncludesOverlappingEventsOnly() {
+		EventIndex index = new EventIndex(Arrays.asList(
+						event("20261020T100000Z", "20261020T110000Z", "meeting")), HORIZON);
+		// touching the start or the end is no overlap
+		assertTrue(index.query(period("20261020T090000Z", "20261020T100000Z")).isEmpty());
+		assertTrue(index.query(period("20261020T110000Z", "20261020T120000Z")).isEmpty());
+		assertEquals(1, index.query(period("20261020T090000Z", "20261020T100001Z")).size());
+		assertEquals(1, index.query(period("20261020T105959Z", "20261020T120000Z")).size());
+		assertEquals(1, index.query(period("20261020T103000Z", "20261020T104500Z")).size());
+	}
+
+	@Test
+	public void queryFindsLongEventsStartedBefore() {
+		EventIndex index = new EventIndex(Arrays.asList(
+						event("20261020T120000Z", "20261020T121500Z", "lunch"),
+						event("20261020T080000Z", "20261020T180000Z", "workshop"),
+						event("20261020T090000Z", "20261020T100000Z", "early"),
+						event("20261020T130000Z", "20261020T140000Z", "later")), HORIZON);
+		assertEquals(Arrays.asList("workshop", "lunch"),
+						summaries(index.query(period("20261020T120000Z", "20261020T123000Z"))));
+		assertEquals(Arrays.asList("workshop", "early", "lunch", "later"),
+						summaries(index.query(period("20261020T000000Z", "20261021T000000Z"))));
+	}
+
+	@Test
+	public void instantaneousEventsAreFoundAtTheirStart() {
+		EventIndex index = new EventIndex(Arrays.asList(event("20261020T100000Z", null, "deadline")), HORIZON);
+		assertEquals(1, index.query(period("20261020T100000Z", "20261020T110000Z")).size());
+		assertTrue(index.query(period("20261020T090000Z", "20261020T100000Z")).isEmpty());
+		// an empty period finds the events starting at its time
+		assertEquals(1, index.query(period("20261020T100000Z", "20261020T100000Z")).size());
+	}
+
+	@Test
+	public void allDayEventsCoverTheirDay() throws ParseException {
+		VEvent holiday = new VEvent(new Date("20261020"), new Date("20261021"), "holiday");
+		EventIndex index = new EventIndex(Arrays.asList(holiday), HORIZON);
+		long start = holiday.getStartDate().getDate().getTime();
+		long end = holiday.getEndDate().getDate().getTime();
+		assertEquals(1, index.query(new Period(new DateTime(start + 3600000), new DateTime(start + 7200000))).size());
+		assertTrue(index.query(new Period(new DateTime(start - 3600000), new DateTime(start))).isEmpty());
+		assertTrue(index.query(new Period(new DateTime(end), new DateTime(end + 3600000))).isEmpty());
+	}
+
+	@Test
+	public void floatingEventsUseTheLocalTime() {
+		EventIndex index = new EventIndex(Arrays.asList(
+						event("20261020T100000", "20261020T110000", "floating")), HORIZON);
+		assertEquals(1, index.query(period("20261020T103000", "20261020T120000")).size());
+		assertTrue(index.query(period("20261020T110000", "20261020T120000")).isEmpty());
+	}
+
+	@Test
+	public void recurringEventsAreExpanded() throws ParseException {
+		EventIndex index = new EventIndex(Arrays.asList(daily("daily@test")), HORIZON);
+		assertEquals(5, index.size());
+		List<VEvent> found = index.query(period("20261021T000000Z", "20261022T000000Z"));
+		assertEquals(1, found.size());
+		assertEquals(time("20261021T100000Z").getTime(), found.get(0).getStartDate().getDate().getTime());
+		assertEquals(time("20261021T110000Z").getTime(), found.get(0).getEndDate().getDate().getTime());
+		assertNull(found.get(0).getProperty(Property.RRULE));
+		assertEquals("daily@test", found.get(0).getUid().getValue());
+	}
+
+	@Test
+	public void excludedOccurrencesAreOmitted() throws ParseException {
+		VEvent master = daily("daily@test");
+		master.getProperties().add(new ExDate(new DateList("20261022T100000Z", Value.DATE_TIME)));
+		EventIndex index = new EventIndex(Arrays.asList(master), HORIZON);
+		assertEquals(4, index.size());
+		assertTrue(index.query(period("20261022T000000Z", "20261023T000000Z")).isEmpty());
+	}
+
+	@Test
+	public void changedOccurrencesReplaceTheExpandedOnes() throws ParseException {
+		VEvent changed = event("20261021T150000Z", "20261021T160000Z", "moved");
+		changed.getProperties().add(new Uid("daily@test"));
+		changed.getProperties().add(new RecurrenceId(time("20261021T100000Z")));
+		EventIndex index = new EventIndex(Arrays.asList(daily("daily@test"), changed), HORIZON);
+		assertEquals(5, index.size());
+		assertEquals(Arrays.asList("moved"),
+						summaries(index.query(period("20261021T000000Z", "20261022T000000Z"))));
+		// occurrences of other recurring events are not replaced
+		VEvent other = daily("other@test");
+		index = new EventIndex(Arrays.asList(other, changed), HORIZON);
+		assertEquals(Arrays.asList("daily", "moved"),
+						summaries(index.query(period("20261021T000000Z", "20261022T000000Z"))));
+	}
+
+	@Test
+	public void recurringEventsNeedAHorizon() throws ParseException {
+		assertEquals(0, new EventIndex(Arrays.asList(daily("daily@test")), null).size());
+		assertEquals(0, new EventIndex(Collections.emptyList(), HORIZON)
+						.query(period("20261021T000000Z", "20261022T000000Z")).size());
+	}
+
+}
@@ -0,0 +1,73 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.component.VEvent;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Tests of the chronological merge of event lists.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class EventMergeTest {
+
+	private static VEvent event(String start, String summary) {
+		try {
+			return new VEvent(new DateTime(start), summary);
+		} catch (ParseException ex) {
+			throw new IllegalArgumentException(ex);
+		}
+	}
+
+	private static List<String> merge(List<List<VEvent>> lists) {
+		List<String> merged = new ArrayList<>();
+		new EventMerge(lists).forEachRemaining(ev -> merged.add(ev.getSummary().getValue()));
+		return merged;
+	}
+
+	@Test
+	public void eventsAreMergedChronologically() {
+		List<VEvent> first = Arrays.asList(event("20261020T080000Z", "a1"), event("20261020T120000Z", "a2"),
+						event("20261022T080000Z", "a3"));
+		List<VEvent> second = Arrays.asList(event("20261020T100000Z", "b1"), event("20261021T100000Z", "b2"));
+		List<VEvent> third = Arrays.asList(event("20261019T100000Z", "c1"));
+		assertEquals(Arrays.asList("c1", "a1", "b1", "a2", "b2", "a3"),
+						merge(Arrays.asList(first, second, third)));
+	}
+
+	@Test
+	public void equalTimesKeepTheOrderOfTheLists() {
+		List<VEvent> first = Arrays.asList(event("20261020T100000Z", "a1"), event("20261020T100000Z", "a2"));
+		List<VEvent> second = Arrays.asList(event("20261020T100000Z", "b1"), event("20261020T110000Z", "b2"));
+		List<VEvent> third = Arrays.asList(event("20261020T090000Z", "c1"), event("20261020T100000Z", "c2"));
+		assertEquals(Arrays.asList("c1", "a1", "a2", "b1", "c2", "b2"),
+						merge(Arrays.asList(first, second, third)));
+		// ties are decided by the position of the lists
+		assertEquals(Arrays.asList("c1", "c2", "b1", "a1", "a2", "b2"),
+						merge(Arrays.asList(third, second, first)));
+	}
+
+	@Test
+	public void emptyListsAreSkipped() {
+		List<VEvent> events = Arrays.asList(event("20261020T100000Z", "a1"));
+		assertEquals(Arrays.asList("a1"), merge(Arrays.asList(Collections.emptyList(), events,
+						Collections.emptyList())));
+	}
+
+	@Test(expected = NoSuchElementException.class)
+	public void nothingToMerge() {
+		EventMerge merge = new EventMerge(Collections.emptyList());
+		assertFalse(merge.hasNext());
+		merge.next();
+	}
+
+}
@@ -0,0 +1,148 @@
+package de.heinersyndikat.tools.calendarmail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the outbox journal.
+ *
+ * @author Sven Bauhan <sde@sven.bauhan.name>
+ */
+public class OutboxTest {
+
+	private Path directory;
+	private Path journal;
+
+	@Before
+	public void createJournal() throws IOException {
+		directory = Files.createTempDirectory("outbox");
+		journal = directory.resolve("outbox.journal");
+	}
+
+	@After
+	public void deleteJournal() throws IOException {
+		Files.deleteIfExists(journal);
+		Files.deleteIfExists(directory);
+	}
+
+	private static void record(DataOutputStream out, byte kind, long id, String data) throws IOException {
+		byte[] bytes = (data != null) ? data.getBytes(StandardCharsets.UTF_8) : new byte[0];
+		out.writeByte(kind);
+		out.writeLong(id);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * @return journal of two pending messages, one restricted to a receiver
+	 */
+	private static byte[] history() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		record(out, Outbox.RECORD_MESSAGE, 1, "message 1");
+		record(out, Outbox.RECORD_MESSAGE, 2, "message 2");
+		record(out, Outbox.RECORD_DONE, 1, null);
+		record(out, Outbox.RECORD_MESSAGE, 3, "message 3");
+		record(out, Outbox.RECORD_RECIPIENTS, 3, "a@example.org, b@example.org");
+		record(out, Outbox.RECORD_MESSAGE, 4, "message 4");
+		record(out, Outbox.RECORD_DONE, 4, null);
+		return bytes.toByteArray();
+	}
+
+	private static void assertPending(Map<Long, Outbox.Pending> restored) throws MessagingException {
+		assertEquals(Arrays.asList(2L, 3L), Arrays.asList(restored.keySet().toArray()));
+		assertArrayEquals("message 2".getBytes(StandardCharsets.UTF_8), restored.get(2L).getData());
+		assertNull(restored.get(2L).getRecipients());
+		assertArrayEquals(InternetAddress.parse("a@example.org, b@example.org"),
+						restored.get(3L).getRecipients());
+	}
+
+	@Test
+	public void replayRestoresThePendingMessages() throws IOException, MessagingException {
+		Files.write(journal, history());
+		assertPending(new Outbox().replay(journal));
+	}
+
+	@Test
+	public void truncatedLastRecordIsIgnored() throws IOException, MessagingException {
+		byte[] complete = history();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		record(out, Outbox.RECORD_MESSAGE, 5, "message 5");
+		byte[] last = bytes.toByteArray();
+		// cut the last record within its data and within its header
+		for (int cut : new int[]{last.length - 3, 5}) {
+			byte[] truncated = Arrays.copyOf(complete, complete.length + cut);
+			System.arraycopy(last, 0, truncated, complete.length, cut);
+			Files.write(journal, truncated);
+			assertPending(new Outbox().replay(journal));
+		}
+	}
+
+	@Test
+	public void corruptLengthEndsTheJournal() throws IOException, MessagingException {
+		byte[] complete = history();
+		for (int length : new int[]{-1, Integer.MAX_VALUE, 100}) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.write(complete);
+			out.writeByte(Outbox.RECORD_MESSAGE);
+			out.writeLong(5);
+			out.writeInt(length);
+			out.write("message".getBytes(StandardCharsets.UTF_8));
+			// records after the corrupt one are not read
+			record(out, Outbox.RECORD_DONE, 2, null);
+			Files.write(journal, bytes.toByteArray());
+			assertPending(new Outbox().replay(journal));
+		}
+	}
+
+	@Test
+	public void compactionKeepsOnlyThePendingMessages() throws IOException, MessagingException {
+		Files.write(journal, history());
+		Outbox outbox = new Outbox();
+		Outbox.compact(journal, outbox.replay(journal));
+		assertPending(new Outbox().replay(journal));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		record(out, Outbox.RECORD_MESSAGE, 2, "message 2");
+		record(out, Outbox.RECORD_MESSAGE, 3, "message 3");
+		record(out, Outbox.RECORD_RECIPIENTS, 3, "a@example.org, b@example.org");
+		assertArrayEquals(bytes.toByteArray(), Files.readAllBytes(journal));
+	}
+
+	@Test
+	public void missingJournalHasNoPendingMessages() throws IOException {
+		assertTrue(new Outbox().replay(journal).isEmpty());
+	}
+
+	@Test
+	public void backoffDoublesUpToTheMaximum() {
+		Outbox outbox = new Outbox();
+		outbox.setInitial_backoff(Duration.ofSeconds(30));
+		outbox.setMax_backoff(Duration.ofMinutes(5));
+		assertEquals(Duration.ofSeconds(30), outbox.backoff(1));
+		assertEquals(Duration.ofSeconds(60), outbox.backoff(2));
+		assertEquals(Duration.ofSeconds(240), outbox.backoff(4));
+		assertEquals(Duration.ofMinutes(5), outbox.backoff(5));
+		assertEquals(Duration.ofMinutes(5), outbox.backoff(100));
+	}
+
+}